@@ -6,30 +6,70 @@ import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.reflect.FuzzyReflection;
+import com.comphenix.protocol.reflect.StructureModifier;
 import com.comphenix.protocol.utility.MinecraftReflection;
+import com.comphenix.protocol.wrappers.WrappedChatComponent;
+import com.google.common.base.Preconditions;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
 import org.bukkit.Material;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.server.PluginDisableEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.plugin.Plugin;
-import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.plugin.RegisteredServiceProvider;
+import org.bukkit.plugin.ServicePriority;
+import org.bukkit.plugin.ServicesManager;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 
 import static com.comphenix.protocol.utility.MinecraftReflection.getCraftBukkitClass;
@@ -64,32 +104,52 @@ import static com.comphenix.protocol.utility.MinecraftReflection.getMinecraftCla
  *
  * @author Jacob
  */
-public final class AnvilMenuFactory {
+public final class AnvilMenuFactory implements AutoCloseable {
 
 	private static final ProtocolManager protocolManager =
 			ProtocolLibrary.getProtocolManager();
 
-	// Reflection
-	private static final Method getHandle = FuzzyReflection
-			.fromClass(getCraftBukkitClass("entity.CraftPlayer"))
-			.getMethodByName("getHandle");
-	private static final Field containerMenu;
-	private static final Field containerId;
+	// Reflection, resolved once into exactly typed handles
+	private static final MethodHandle getHandle;
+	private static final MethodHandle containerMenu;
+	private static final MethodHandle containerId;
+	private static final String mappings;
+	private static final AtomicBoolean mappingsLogged = new AtomicBoolean();
+	private static final AtomicInteger handlerIds = new AtomicInteger();
+
+	// Region threaded servers have no main thread
+	private static final boolean folia = isFolia();
 
 	static {
 		try {
-			Class<?> playerClass = MinecraftReflection.getEntityHumanClass();
-
-			containerMenu = getField(playerClass, "activeContainer", "bU");
-			containerId = getField(
+			Method handleMethod = FuzzyReflection
+					.fromClass(getCraftBukkitClass("entity.CraftPlayer"))
+					.getMethodByName("getHandle");
+			Field menuField = getField(MinecraftReflection.getEntityHumanClass(),
+					"activeContainer", "bU");
+			Field idField = getField(
 					getMinecraftClass("world.inventory.Container", "Container"),
 					"windowId", "j"
 			);
 
-			if(containerId.getType() != int.class)
+			if(idField.getType() != int.class)
 				throw new RuntimeException("Version too new!");
-			if(!containerMenu.getType().getSimpleName().equals("Container"))
+			if(!menuField.getType().getSimpleName().equals("Container"))
 				throw new RuntimeException("Version too new!");
+
+			menuField.setAccessible(true);
+			idField.setAccessible(true);
+
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+			getHandle = lookup.unreflect(handleMethod)
+					.asType(MethodType.methodType(Object.class, Object.class));
+			containerMenu = lookup.unreflectGetter(menuField)
+					.asType(MethodType.methodType(Object.class, Object.class));
+			containerId = lookup.unreflectGetter(idField)
+					.asType(MethodType.methodType(int.class, Object.class));
+
+			mappings = describe(handleMethod) + ", " + describe(menuField) + ", " + describe(idField);
 		} catch(Exception e) {
 			throw new RuntimeException("Reflection error", e);
 		}
@@ -102,9 +162,70 @@ public final class AnvilMenuFactory {
 			return clazz.getDeclaredField(name2);
 		}
 	}
-	
-	private final Map<Player, Menu> menus = new ConcurrentHashMap<>();
+
+	private static String describe(Member member) {
+		return member.getDeclaringClass().getSimpleName() + "#" + member.getName();
+	}
+
+	private static int getWindowId(Player player) throws Throwable {
+		Object handle = (Object) getHandle.invokeExact((Object) player);
+		Object container = (Object) containerMenu.invokeExact(handle);
+
+		return (int) containerId.invokeExact(container);
+	}
+
+	private static boolean isFolia() {
+		try {
+			Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+			return true;
+		} catch(ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	// Keyed by entity id, so players aren't hashed on every packet
+	private final IntMap<Session> sessions = new IntMap<>();
+	private final Queue<Player> costResetQueue = new ConcurrentLinkedQueue<>();
+	private final LongAdder throttledRenames = new LongAdder();
+	private final LongAdder directPackets = new LongAdder();
+	private volatile boolean disposed = false;
+	private final LongAdder leakedSessions = new LongAdder();
+	private volatile int sweepRate = 8;
+	private int sweepCursor = 0;
+	// Cancels the per-tick task, null while it isn't running
+	private Runnable ticker;
+
+	// Idle and deadline timeouts, only touched from the ticking thread
+	private final TimingWheel wheel = new TimingWheel();
+	private final Queue<Session> timerUpdates = new ConcurrentLinkedQueue<>();
+
+	// Tasks handed to the main thread, drained by the ticker within the budget
+	private final Queue<Runnable> syncTasks = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queuedSyncTasks = new AtomicInteger();
+	private volatile long syncBudget = 2_000_000L;
+	private volatile long syncDrainTime = 0;
+
+	// Opens spread across ticks, only the latest open of each player is kept
+	private final Queue<PendingOpen> pendingOpens = new ConcurrentLinkedQueue<>();
+	private final Map<Integer, PendingOpen> latestOpens = new ConcurrentHashMap<>();
+	private volatile int openRate = 0;
+	private volatile long openBudget = 0;
+	private final LongAdder admittedOpens = new LongAdder();
+	private final LongAdder openWaitTime = new LongAdder();
+
+	// Runs synchronous responses off the owning thread, null unless enabled
+	private volatile ResponseExecutor responseExecutor;
+	private volatile double renameRate = 20;
+	private volatile int renameBurst = 40;
 	private final Plugin plugin;
+	private final Backend backend;
+	private final Scheduler scheduler;
+	private final String handlerName;
+
+	// Sessions are bound to the shared dispatcher, which routes their events here
+	private final Consumer<Object> route;
+	// Dropped when the dispatcher retires, the next bind finds its replacement
+	private volatile BiFunction<Integer, Consumer<Object>, Runnable> dispatcher;
 
 	/**
 	 * Makes a new anvil menu factory
@@ -112,309 +233,2426 @@ public final class AnvilMenuFactory {
 	 * @param plugin plugin instance
 	 */
 	public AnvilMenuFactory(Plugin plugin) {
+		this(plugin, Backend.PROTOCOLLIB);
+	}
+
+	/**
+	 * Makes a new anvil menu factory
+	 *
+	 * @param plugin plugin instance
+	 * @param backend how anvil packets are intercepted
+	 */
+	public AnvilMenuFactory(Plugin plugin, Backend backend) {
 		Preconditions.checkNotNull(plugin, "plugin is null");
 		Preconditions.checkArgument(plugin.isEnabled(), "plugin is not enabled");
+		Preconditions.checkNotNull(backend, "backend is null");
 
 		this.plugin = plugin;
-		listen();
-	}
+		this.backend = backend;
+		// Shaded copies have their own counter, the plugin name keeps them apart
+		this.handlerName = "anvil_menu_" + plugin.getName() + "_" + handlerIds.incrementAndGet();
 
-	private void listen() {
-		Bukkit.getServer().getPluginManager().registerEvents(new Listener() {
-			@EventHandler
-			public void onQuit(PlayerQuitEvent event) {
-				Player p = event.getPlayer();
+		this.route = backend == Backend.NETTY ? new EventRoute() : new Route();
+		this.scheduler = folia ? new RegionScheduler() : new MainThreadScheduler();
 
-				Menu menu = menus.remove(p);
-				if(menu != null) {
-					try {
-						menu.itemNames.remove(p);
-						menu.dontCall.remove(p);
-						menu.getResponse().execute(p, CloseReason.DISCONNECT, menu.itemNames.remove(p));
-					} catch(Throwable t) {
-						handleError(t);
-					}
-				}
-			}
+		if(!mappingsLogged.getAndSet(true))
+			plugin.getLogger().info("Anvil menus resolved mappings: " + mappings);
+	}
 
-			@EventHandler
-			public void onClick(InventoryClickEvent event) {
-				if(!(event.getWhoClicked() instanceof Player p))
-					return;
+	/**
+	 * Handles an event routed to this factory by the dispatcher
+	 */
+	private void dispatch(Object event) {
+		if(event instanceof PacketEvent packetEvent)
+			onPacket(packetEvent);
+		else if(event instanceof InventoryClickEvent clickEvent)
+			onClick(clickEvent);
+		else if(event instanceof PlayerQuitEvent quitEvent)
+			onQuit(quitEvent.getPlayer());
+	}
 
-				Menu menu = menus.get(p);
+	private void onPacket(PacketEvent event) {
+		Player p = event.getPlayer();
+		PacketType type = event.getPacketType();
+		PacketContainer packet = event.getPacket();
+		boolean cancel = false;
+
+		if(type == PacketType.Play.Client.ITEM_NAME)
+			cancel = onRename(p, packet.getStrings().read(0));
+		else if(type == PacketType.Play.Client.CLOSE_WINDOW)
+			cancel = onClientClose(p, packet.getIntegers().read(0));
+		else if(type == PacketType.Play.Client.WINDOW_CLICK) {
+			StructureModifier<Integer> ints = packet.getIntegers();
+			// 1.17.1+ has a state id before the slot
+			cancel = onWindowClick(p, ints.read(0), ints.read(ints.size() >= 4 ? 2 : 1));
+		} else if(type == PacketType.Play.Server.OPEN_WINDOW)
+			onServerOpen(p, packet.getIntegers().read(0));
+		else if(type == PacketType.Play.Server.CLOSE_WINDOW)
+			onServerClose(p, packet.getIntegers().read(0));
+
+		if(cancel)
+			event.setCancelled(true);
+	}
 
-				if(menu == null)
-					return;
+	private void onQuit(Player p) {
+		Session session = sessions.get(p.getEntityId());
+		if(session == null)
+			return;
 
-				event.setCancelled(true);
+		// The session is dropped either way, the callback only runs if no close won it
+		boolean call = session.claim(State.CALLBACK);
+		removeSession(session);
 
-				if(event.getSlot() != 2)
-					return;
+		if(call) {
+			Config config = session.menu.config.get();
+			try {
+				String itemName = session.text;
+
+				if(config.stripColor)
+					itemName = ChatColor.stripColor(itemName);
 
-				execute(p, CloseReason.CLICK);
+				respond(config, responseExecutor, p, CloseReason.DISCONNECT, itemName).whenComplete(this::handleError);
+			} catch(Throwable t) {
+				handleError(t);
 			}
 
-		}, plugin);
+			session.compareAndSet(State.CALLBACK, State.CLOSED);
+		}
+	}
+
+	private void onClick(InventoryClickEvent event) {
+		if(!(event.getWhoClicked() instanceof Player p))
+			return;
 
-		protocolManager.addPacketListener(new PacketAdapter(plugin, PacketType.Play.Server.CLOSE_WINDOW,
-				PacketType.Play.Client.CLOSE_WINDOW, PacketType.Play.Client.ITEM_NAME) {
-			public void onPacketReceiving(PacketEvent event) {
-				Player p = event.getPlayer();
+		Session session = sessions.get(p.getEntityId());
 
-				Menu menu = menus.get(p);
-				if(menu == null)
-					return;
+		// Pending async sessions outlive their anvil, only cancel clicks in it
+		if(session == null || session.virtual || !session.inventory.equals(event.getInventory()))
+			return;
 
-				if(event.getPacketType() == PacketType.Play.Client.CLOSE_WINDOW) {
-					doSync(() -> execute(p, CloseReason.CLIENT_CLOSE));
-				} else {
-					event.setCancelled(true);
-					
-					PacketContainer packet = new PacketContainer(Server.WINDOW_DATA);
-					try {
-						Object handle = getHandle.invoke(p);
-						Object container = containerMenu.get(handle);
-						int id = (int) containerId.get(container);
+		event.setCancelled(true);
 
-						packet.getIntegers().write(0, id);
-						packet.getIntegers().write(1, 0);
-						packet.getIntegers().write(2, 0);
+		if(event.getSlot() != 2)
+			return;
 
-						protocolManager.sendServerPacket(p, packet);
-					} catch(Exception e) {
-						plugin.getLogger().log(Level.WARNING, "Error sending anvil price packet", e);
-					}
-					
-					String newItemName = event.getPacket().getStrings().read(0);
+		execute(p, CloseReason.CLICK);
+	}
 
-					menu.itemNames.put(p, newItemName == null ? "" :
-							newItemName);
-				}
-			}
+	/**
+	 * Handles an item name packet
+	 *
+	 * @return whether the packet belongs to a menu and should be cancelled
+	 */
+	private boolean onRename(Player p, String newItemName) {
+		Session session = sessions.get(p.getEntityId());
+		if(session == null)
+			return false;
+
+		// The final text was already handed to a pending response. Like clicks,
+		// input only belongs to the menu while the client still has its anvil open
+		if(session.state == State.CALLBACK)
+			return !session.anvilGone;
+
+		long now = System.nanoTime();
+
+		session.text = newItemName == null ? "" : newItemName;
+		session.lastInputTick = wheel.now;
+
+		if(!session.tryAcquireRename(now, renameRate, renameBurst)) {
+			// Over budget, keep the text but skip the cost reset
+			throttledRenames.increment();
+		} else {
+			// The client recomputes the cost itself on every keystroke
+			queueCostReset(p, session);
+		}
 
-			public void onPacketSending(PacketEvent event) {
-				execute(event.getPlayer(), CloseReason.SERVER_CLOSE);
-			}
-		});
+		return true;
 	}
 
-	private void handleError(Throwable t) {
-		plugin.getLogger().log(Level.WARNING, "Anvil callback error", t);
+	/**
+	 * Handles a close window packet from the client
+	 *
+	 * @return whether the packet should be cancelled
+	 */
+	private boolean onClientClose(Player p, int windowId) {
+		Session session = sessions.get(p.getEntityId());
+
+		if(session == null || (session.virtual && session.windowId != windowId))
+			return false;
+
+		session.anvilGone = true;
+		doSync(p, () -> execute(p, CloseReason.CLIENT_CLOSE));
+
+		// The server has no container to close for virtual menus
+		return session.virtual;
 	}
 
-	private void execute(Player p, CloseReason reason) {
-		Menu menu = menus.remove(p);
+	/**
+	 * Handles a window click packet, only used for virtual menus
+	 * as the server handles clicks of real ones
+	 *
+	 * @return whether the packet should be cancelled
+	 */
+	private boolean onWindowClick(Player p, int windowId, int slot) {
+		Session session = sessions.get(p.getEntityId());
+		if(session == null || !session.virtual || windowId != session.windowId)
+			return false;
+
+		if(slot == 2)
+			doSync(p, () -> execute(p, CloseReason.CLICK));
+		else
+			sendContents(p, session.windowId, session.item);
+
+		return true;
+	}
+
+	private void onServerOpen(Player p, int windowId) {
+		Session session = sessions.get(p.getEntityId());
 
-		if(menu == null) {
+		if(session == null || session.windowId == windowId || session.windowId == -1)
 			return;
-		}
 
-		if(menu.dontCall.contains(p)) {
-			menu.dontCall.remove(p);
+		// Another window replaced the anvil on the client
+		session.anvilGone = true;
+
+		if(session.virtual)
+			execute(p, CloseReason.SERVER_CLOSE);
+	}
+
+	private void onServerClose(Player p, int windowId) {
+		Session session = sessions.get(p.getEntityId());
+
+		// Ignore closes of other windows, unless the anvil's id is unknown
+		if(session == null || (session.windowId != windowId && session.windowId != -1))
 			return;
+
+		session.anvilGone = true;
+		execute(p, CloseReason.SERVER_CLOSE);
+	}
+
+	private void addSession(Player p, Session session) {
+		session.lastInputTick = wheel.now;
+		session.unbind = bind(p.getEntityId());
+		Session previous = sessions.put(p.getEntityId(), session);
+
+		if(previous != null && previous.menu != session.menu)
+			previous.menu.viewers.remove(p);
+
+		session.menu.viewers.add(p);
+
+		if(session.isTimed())
+			timerUpdates.add(session);
+
+		startTicking();
+	}
+
+	/**
+	 * Binds the player to this factory's route through the cached dispatcher
+	 *
+	 * @return runnable to unbind the player
+	 */
+	private Runnable bind(int entityId) {
+		while(true) {
+			BiFunction<Integer, Consumer<Object>, Runnable> current = dispatcher;
+			if(current == null)
+				dispatcher = current = Dispatcher.find(plugin);
+
+			Runnable unbind = current.apply(entityId, route);
+			if(unbind != null)
+				return unbind;
+
+			// Retired meanwhile
+			dispatcher = null;
 		}
+	}
 
-		doSync(() -> {
-			try {
-				String itemName = menu.itemNames.remove(p);
+	/**
+	 * Binds every session to a new dispatcher, as the one they're bound to retired
+	 */
+	private void rebind() {
+		dispatcher = null;
 
-				if(menu.stripColor())
-					itemName = ChatColor.stripColor(itemName);
+		sessions.forEach(session -> {
+			Runnable unbind = bind(session.entityId);
+			session.unbind = unbind;
+
+			// Removed meanwhile, so its old binding was dropped instead
+			if(sessions.get(session.entityId) != session)
+				unbind.run();
+		});
+	}
 
-				Result result = menu.getResponse().execute(p, reason, itemName);
+	private synchronized void startTicking() {
+		if(ticker == null && plugin.isEnabled())
+			ticker = scheduler.repeat(this::tick);
+	}
 
-				if(result == Result.REOPEN) {
-					menu.open(p);
-				} else if(result == Result.REOPEN_WITH_TEXT) {
-					menu.open(p, itemName);
-				} else
-					p.closeInventory();
-			} catch(Throwable t) {
-				handleError(t);
+	/**
+	 * Runs every tick while sessions are open or sync tasks, opens, cost resets
+	 * or timer updates are queued, on the main thread or the global region thread
+	 */
+	private void tick() {
+		synchronized(this) {
+			// Removed timed sessions stay linked into the wheel until their update is drained
+			if(sessions.isEmpty() && queuedSyncTasks.get() == 0 && pendingOpens.isEmpty()
+					&& costResetQueue.isEmpty() && timerUpdates.isEmpty()) {
+				ticker.run();
+				ticker = null;
+				return;
 			}
-		});
+		}
+
+		drainSyncTasks();
+		admitOpens();
+		flushCostResets();
+		updateTimers();
+		wheel.advance(this::expire);
+		sweep();
 	}
 
-	private void doSync(Runnable run) {
-		if(Bukkit.isPrimaryThread())
-			run.run();
-		else
-			new BukkitRunnable() {
-				public void run() {
-					run.run();
-				}
-			}.runTask(plugin);
+	/**
+	 * Schedules timeouts of added sessions and cancels the ones of removed sessions
+	 */
+	private void updateTimers() {
+		Session session;
+		while((session = timerUpdates.poll()) != null) {
+			if(!session.isLive() || sessions.get(session.entityId) != session) {
+				wheel.cancel(session);
+			} else if(!session.isScheduled()) {
+				if(session.deadlineTicks > 0)
+					session.deadlineTick = wheel.now + session.deadlineTicks;
+
+				wheel.schedule(session, nextTimeout(session));
+			}
+		}
 	}
 
 	/**
-	 * Gets the plugin for this factory
-	 *
-	 * @return plugin for this factory
+	 * Gets the wheel tick the session may time out at next
 	 */
-	public Plugin getPlugin() {
-		return plugin;
+	private long nextTimeout(Session session) {
+		long due = session.deadlineTick > 0 ? session.deadlineTick : Long.MAX_VALUE;
+
+		if(session.idleTicks > 0) {
+			due = Math.min(due, Math.max(wheel.now + 1, session.lastInputTick + session.idleTicks));
+		}
+
+		return due;
+	}
+
+	private void expire(Timeout timeout) {
+		Session session = (Session) timeout;
+
+		if(!session.isLive() || sessions.get(session.entityId) != session)
+			return;
+
+		boolean expired = session.deadlineTick > 0 && wheel.now >= session.deadlineTick;
+
+		// Input isn't rescheduled on every keystroke, it's checked once the timeout is due
+		if(!expired && session.idleTicks > 0)
+			expired = wheel.now >= session.lastInputTick + session.idleTicks;
+
+		if(!expired) {
+			wheel.schedule(session, nextTimeout(session));
+			return;
+		}
+
+		execute(session.player, CloseReason.TIMEOUT);
 	}
 
 	/**
-	 * Makes a new menu
-	 *
-	 * @return created menu
+	 * Checks a bounded amount of sessions, continuing where the last tick stopped,
+	 * and evicts the ones whose player no longer has the menu open. Catches sessions
+	 * whose close was missed, like when another plugin cancels the close packet
 	 */
-	public Menu newMenu() {
-		return new Menu(null, null, null);
+	private void sweep() {
+		int capacity = sessions.capacity();
+		int checked = 0;
+
+		for(int i = 0; i < capacity && checked < sweepRate; i++) {
+			sweepCursor = (sweepCursor + 1) & (capacity - 1);
+
+			Session session = sessions.valueAt(sweepCursor);
+			if(session == null)
+				continue;
+
+			checked++;
+
+			// Only settled and pending sessions, closing ones are already on their way out
+			if(session.state != State.OPEN && session.state != State.CALLBACK)
+				continue;
+
+			// The open inventory can only be read from the thread owning the player
+			Player p = session.player;
+			doSync(p, () -> checkLeak(p, session));
+		}
+	}
+
+	private void checkLeak(Player p, Session session) {
+		if(!isStale(p, session))
+			return;
+
+		if(session.state == State.OPEN) {
+			leakedSessions.increment();
+			execute(p, p.isOnline() ? CloseReason.SERVER_CLOSE : CloseReason.DISCONNECT);
+		} else if(session.state == State.CALLBACK) {
+			// The anvil of a pending response is gone, stop intercepting input for it.
+			// The response still completes, but won't touch other inventories
+			removeSession(session);
+		}
+	}
+
+	private static boolean isStale(Player p, Session session) {
+		if(!p.isOnline())
+			return true;
+
+		// Virtual menus are stale once the server opened a real inventory
+		if(session.virtual)
+			return hasInventoryOpen(p);
+
+		return !session.inventory.equals(p.getOpenInventory().getTopInventory());
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param title anvil title
-	 * @return created menu
+	 * Checks whether the server has an inventory other than the player's own open
 	 */
-	public Menu newMenu(String title) {
-		return new Menu(title, null, null);
+	private static boolean hasInventoryOpen(Player p) {
+		InventoryType type = p.getOpenInventory().getType();
+		return type != InventoryType.CRAFTING && type != InventoryType.CREATIVE;
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param item item to show
-	 * @return created menu
+	 * Removes the session if it's still the player's current one
 	 */
-	public Menu newMenu(ItemStack item) {
-		return new Menu(null, item, null);
+	private void removeSession(Session session) {
+		if(sessions.remove(session.entityId, session)) {
+			session.menu.viewers.remove(session.player);
+			session.unbind.run();
+
+			if(session.isTimed()) {
+				timerUpdates.add(session);
+				startTicking();
+			}
+
+			if(backend == Backend.NETTY)
+				uninject(session.player);
+		}
+	}
+
+	private void inject(Player p) {
+		try {
+			Channel channel = NettyAccess.getChannel(p);
+
+			channel.eventLoop().execute(() -> {
+				ChannelPipeline pipeline = channel.pipeline();
+
+				// Closed channels have their handlers removed already
+				if(pipeline.get("packet_handler") != null && pipeline.get(handlerName) == null)
+					pipeline.addBefore("packet_handler", handlerName, new PacketInterceptor(p));
+			});
+		} catch(Throwable t) {
+			plugin.getLogger().log(Level.WARNING, "Error injecting anvil packet handler", t);
+		}
+	}
+
+	private void uninject(Player p) {
+		try {
+			Channel channel = NettyAccess.getChannel(p);
+
+			channel.eventLoop().execute(() -> {
+				ChannelPipeline pipeline = channel.pipeline();
+
+				if(pipeline.get(handlerName) != null)
+					pipeline.remove(handlerName);
+			});
+		} catch(Throwable t) {
+			plugin.getLogger().log(Level.WARNING, "Error removing anvil packet handler", t);
+		}
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param title anvil title
-	 * @param item item to show
-	 * @return created menu
+	 * Queues a repair cost reset unless one is already queued, resets within
+	 * the same tick are coalesced into one packet sent by the next tick
 	 */
-	public Menu newMenu(String title, ItemStack item) {
-		return new Menu(title, item, null);
+	private void queueCostReset(Player p, Session session) {
+		if(session.costReset != null && session.costResetQueued.compareAndSet(false, true))
+			costResetQueue.add(p);
+	}
+
+	private void flushCostResets() {
+		Player p;
+		while((p = costResetQueue.poll()) != null) {
+			Session session = sessions.get(p.getEntityId());
+
+			if(session == null || !session.costResetQueued.getAndSet(false))
+				continue;
+
+			sendDirect(p, session.costReset);
+		}
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param title anvil title
-	 * @param response response callback
-	 * @return created menu
+	 * Sends one of the factory's own packets without filters,
+	 * so packet listeners of other plugins don't process it
 	 */
-	public Menu newMenu(String title, AnvilResponse response) {
-		return new Menu(title, null, response);
+	private void sendDirect(Player p, PacketContainer packet) {
+		directPackets.increment();
+
+		try {
+			protocolManager.sendServerPacket(p, packet, false);
+		} catch(Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Error sending anvil packet", e);
+		}
+	}
+
+	private void openVirtual(Player p, Menu menu, Config config, ItemStack item, String text) {
+		// Replacing an open menu counts as the server closing it
+		if(sessions.get(p.getEntityId()) != null)
+			execute(p, CloseReason.SERVER_CLOSE);
+
+		int windowId = VirtualAccess.nextWindowId();
+
+		Session session = new Session(p, menu, config, windowId, newCostReset(windowId), null, item, text);
+		addSession(p, session);
+
+		if(backend == Backend.NETTY)
+			inject(p);
+
+		try {
+			PacketContainer packet = new PacketContainer(Server.OPEN_WINDOW);
+
+			packet.getIntegers().write(0, windowId);
+			packet.getModifier().withType(VirtualAccess.menuTypeClass).write(0, VirtualAccess.anvilMenuType);
+			packet.getChatComponents().write(0, WrappedChatComponent.fromLegacyText(
+					config.title == null ? InventoryType.ANVIL.getDefaultTitle() : config.title));
+
+			sendDirect(p, packet);
+		} catch(Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Error opening virtual anvil", e);
+		}
+
+		sendContents(p, windowId, item);
+		session.compareAndSet(State.OPENING, State.OPEN);
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param item item to show
-	 * @param response response callback
-	 * @return created menu
+	 * Sends the contents of a virtual anvil, the anvil slots followed by the player's inventory.
+	 * The inventory is read on the thread owning the player, as clicks arrive on netty threads
 	 */
-	public Menu newMenu(ItemStack item, AnvilResponse response) {
-		return new Menu(null, item, response);
+	private void sendContents(Player p, int windowId, ItemStack item) {
+		doSync(p, () -> {
+			ItemStack air = new ItemStack(Material.AIR);
+			ItemStack[] storage = p.getInventory().getStorageContents();
+			List<ItemStack> items = new ArrayList<>(39);
+
+			items.add(item);
+			items.add(air);
+			items.add(air);
+
+			// Main inventory, then the hotbar
+			for(int i = 9; i < 36; i++)
+				items.add(storage[i] == null ? air : storage[i]);
+			for(int i = 0; i < 9; i++)
+				items.add(storage[i] == null ? air : storage[i]);
+
+			try {
+				PacketContainer packet = new PacketContainer(Server.WINDOW_ITEMS);
+
+				packet.getIntegers().write(0, windowId);
+				packet.getItemListModifier().write(0, items);
+
+				if(packet.getItemModifier().size() > 0)
+					packet.getItemModifier().write(0, air);
+
+				sendDirect(p, packet);
+			} catch(Exception e) {
+				plugin.getLogger().log(Level.WARNING, "Error sending virtual anvil contents", e);
+			}
+		});
+	}
+
+	private void closeInventory(Player p, Session session) {
+		if(!session.virtual) {
+			p.closeInventory();
+			return;
+		}
+
+		try {
+			PacketContainer packet = new PacketContainer(Server.CLOSE_WINDOW);
+
+			packet.getIntegers().write(0, session.windowId);
+			sendDirect(p, packet);
+		} catch(Exception e) {
+			plugin.getLogger().log(Level.WARNING, "Error closing virtual anvil", e);
+		}
+
+		// Undo anything the client predicted while clicking
+		p.updateInventory();
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param title anvil title
-	 * @param item item to show
-	 * @param response response callback
-	 * @return created menu
+	 * Builds the packet resetting the repair cost (property 0) of a window to 0.
+	 * It is immutable after this and is resent as-is whenever the cost changes
 	 */
-	public Menu newMenu(String title, ItemStack item, AnvilResponse response) {
-		return new Menu(title, item, response);
+	private static PacketContainer newCostReset(int windowId) {
+		PacketContainer packet = new PacketContainer(Server.WINDOW_DATA);
+
+		packet.getIntegers().write(0, windowId);
+		packet.getIntegers().write(1, 0);
+		packet.getIntegers().write(2, 0);
+
+		return packet;
+	}
+
+	private void handleError(Throwable t) {
+		plugin.getLogger().log(Level.WARNING, "Anvil callback error", t);
+	}
+
+	private void handleError(Result result, Throwable t) {
+		if(t != null)
+			handleError(t);
+	}
+
+	/**
+	 * Calls the response of the menu, synchronous responses are already
+	 * completed unless they run on the response executor
+	 */
+	private CompletionStage<Result> respond(Config config, ResponseExecutor executor,
+											Player p, CloseReason reason, String itemName) {
+		if(config.asyncResponse != null)
+			return config.asyncResponse.execute(p, reason, itemName);
+
+		if(executor != null) {
+			try {
+				return executor.submit(() -> config.response.execute(p, reason, itemName));
+			} catch(RejectedExecutionException e) {
+				// Replaced or shut down since it was read, use the current one or run right here
+				ResponseExecutor current = responseExecutor;
+				if(current != null && current != executor)
+					return respond(config, current, p, reason, itemName);
+			}
+		}
+
+		return CompletableFuture.completedFuture(config.response.execute(p, reason, itemName));
+	}
+
+	private void execute(Player p, CloseReason reason) {
+		Session session = sessions.get(p.getEntityId());
+
+		// Only the first close wins the session, silent closes skip the callback
+		if(session == null || !session.claim(State.CALLBACK)) {
+			return;
+		}
+
+		Config config = session.menu.config.get();
+		ResponseExecutor executor = responseExecutor;
+
+		// Pending async sessions stay added, so their input is still intercepted
+		boolean late = config.asyncResponse != null || executor != null;
+		if(!late)
+			removeSession(session);
+
+		doSync(p, () -> {
+			String itemName = session.text;
+
+			if(config.stripColor)
+				itemName = ChatColor.stripColor(itemName);
+
+			CompletionStage<Result> stage;
+			try {
+				stage = Preconditions.checkNotNull(respond(config, executor, p, reason, itemName),
+						"response returned a null stage");
+			} catch(Throwable t) {
+				complete(p, session, null, t, itemName, late);
+				return;
+			}
+
+			// Synchronous responses complete right here, async ones on any thread
+			String name = itemName;
+			stage.whenComplete((result, t) -> doSync(p, () -> complete(p, session, result, t, name, late)));
+		});
+	}
+
+	/**
+	 * Applies the result of a response on the thread owning the player
+	 *
+	 * @param late whether the response didn't complete right away, so the player may have moved on
+	 */
+	private void complete(Player p, Session session, Result result, Throwable error, String itemName, boolean late) {
+		removeSession(session);
+
+		// A failed response has no result, so the menu is closed
+		if(error != null)
+			handleError(error);
+
+		if(p.isOnline() && !(late && isStale(p, session) && hasInventoryOpen(p))) {
+			// Async responses may complete after the player left or opened another inventory
+			try {
+				boolean stale = isStale(p, session);
+
+				// Menus can't be opened again once the factory is disposed
+				if((result == Result.REOPEN || result == Result.REOPEN_WITH_TEXT) && !disposed) {
+					Config config = session.menu.config.get();
+					ItemStack item = result == Result.REOPEN ? config.item : Menu.withName(config.item, itemName);
+
+					// The session is already removed, so an anvil still open is replaced right away
+					session.menu.open(p, config, item, null, stale);
+				} else if(!stale)
+					closeInventory(p, session);
+			} catch(Throwable t) {
+				handleError(t);
+			}
+		}
+
+		session.compareAndSet(State.CALLBACK, State.CLOSED);
+	}
+
+	/**
+	 * Runs the task on the thread owning the player, right away if it's the current one
+	 */
+	private void doSync(Player p, Runnable run) {
+		// Nothing can be scheduled for a disabled plugin
+		if(scheduler.isOwner(p) || !plugin.isEnabled())
+			run.run();
+		else
+			scheduler.execute(p, run);
+	}
+
+	/**
+	 * Runs the task a tick later on the main thread or the global region thread
+	 */
+	private static void runGlobal(Plugin plugin, Runnable run) {
+		if(folia)
+			FoliaAccess.execute(plugin, run);
+		else
+			Bukkit.getScheduler().runTask(plugin, run);
+	}
+
+	/**
+	 * Queues the open if admission is enabled, superseding an open still queued for the player
+	 *
+	 * @return whether the open was queued
+	 */
+	private boolean queueOpen(PendingOpen open) {
+		// Nothing would admit it once the plugin is disabled
+		if((openRate == 0 && openBudget == 0) || !plugin.isEnabled())
+			return false;
+
+		latestOpens.put(open.player.getEntityId(), open);
+		pendingOpens.add(open);
+		startTicking();
+		return true;
+	}
+
+	/**
+	 * Runs queued opens in order until the count or time budget is used up,
+	 * at least one open runs per tick
+	 */
+	private void admitOpens() {
+		int rate = openRate;
+		long budget = openBudget;
+		long start = System.nanoTime();
+		int opened = 0;
+		PendingOpen open;
+
+		while((rate == 0 || opened < rate) && (budget == 0 || opened == 0 || System.nanoTime() - start < budget)
+				&& (open = pendingOpens.poll()) != null) {
+			// A later open of the same player replaced it
+			if(!latestOpens.remove(open.player.getEntityId(), open))
+				continue;
+
+			opened++;
+			admittedOpens.increment();
+			openWaitTime.add(start - open.queuedAt);
+
+			try {
+				open.menu.openNow(open.player, open.config, open.item, open.text);
+			} catch(Throwable t) {
+				plugin.getLogger().log(Level.WARNING, "Error opening anvil menu", t);
+			}
+		}
+	}
+
+	/**
+	 * Runs queued sync tasks until the budget is used up, at least one task runs per tick
+	 */
+	private void drainSyncTasks() {
+		if(queuedSyncTasks.get() == 0) {
+			syncDrainTime = 0;
+			return;
+		}
+
+		long start = System.nanoTime();
+		long budget = syncBudget;
+		long now = start;
+		Runnable run;
+
+		do {
+			if((run = syncTasks.poll()) == null)
+				break;
+
+			queuedSyncTasks.decrementAndGet();
+			try {
+				run.run();
+			} catch(Throwable t) {
+				plugin.getLogger().log(Level.WARNING, "Error running sync task", t);
+			}
+
+			now = System.nanoTime();
+		} while(now - start < budget);
+
+		syncDrainTime = now - start;
+	}
+
+	/**
+	 * Disposes this factory. All open menus are closed without calling their
+	 * callbacks and their players are unbound from the shared listeners.
+	 * Menus can't be made or opened afterwards
+	 */
+	public void dispose() {
+		dispose(false);
+	}
+
+	/**
+	 * Disposes this factory. All open menus are closed and their players are
+	 * unbound from the shared listeners. Menus can't be made or opened afterwards
+	 *
+	 * @param call whether to call the callbacks of open menus with
+	 * {@link CloseReason#SERVER_CLOSE} so input can be persisted,
+	 * their results are ignored and the menus always close
+	 */
+	public void dispose(boolean call) {
+		synchronized(this) {
+			if(disposed)
+				return;
+
+			disposed = true;
+		}
+
+		sessions.forEach(session -> {
+			Player p = session.player;
+
+			if(!session.claim(call ? State.CALLBACK : State.CLOSING_SILENT))
+				return;
+
+			removeSession(session);
+			doSync(p, () -> {
+				if(call) {
+					try {
+						String itemName = session.text;
+						Config config = session.menu.config.get();
+
+						if(config.stripColor)
+							itemName = ChatColor.stripColor(itemName);
+
+						respond(config, responseExecutor, p, CloseReason.SERVER_CLOSE, itemName).whenComplete(this::handleError);
+					} catch(Throwable t) {
+						handleError(t);
+					}
+				}
+
+				closeInventory(p, session);
+				session.compareAndSet(call ? State.CALLBACK : State.CLOSING_SILENT, State.CLOSED);
+			});
+		});
+
+		costResetQueue.clear();
+		pendingOpens.clear();
+		latestOpens.clear();
+
+		// Running responses still finish, their results close the menus
+		setBlockingResponses(0);
+	}
+
+	/**
+	 * Same as {@link #dispose()}
+	 */
+	@Override
+	public void close() {
+		dispose();
+	}
+
+	/**
+	 * Gets whether this factory was disposed
+	 *
+	 * @return whether this factory was disposed
+	 */
+	public boolean isDisposed() {
+		return disposed;
+	}
+
+	/**
+	 * Gets the plugin for this factory
+	 *
+	 * @return plugin for this factory
+	 */
+	public Plugin getPlugin() {
+		return plugin;
+	}
+
+	/**
+	 * Sets how many item name packets per second each player may send
+	 * before the factory stops doing work for them. The typed text is always
+	 * kept, only the repair cost reset is skipped.
+	 * Default is 20 per second with a burst of 40
+	 *
+	 * @param perSecond packets refilled per second, 0 or less to disable
+	 * @param burst maximum packets allowed at once
+	 */
+	public void setRenameRateLimit(double perSecond, int burst) {
+		Preconditions.checkArgument(burst > 0, "burst must be positive");
+
+		this.renameRate = perSecond;
+		this.renameBurst = burst;
+	}
+
+	/**
+	 * Gets how many item name packets were throttled by the rate limit
+	 *
+	 * @return amount of throttled item name packets
+	 * @see #setRenameRateLimit(double, int)
+	 */
+	public long getThrottledRenames() {
+		return throttledRenames.sum();
+	}
+
+	/**
+	 * Sets how many sessions are checked for leaks every tick. A session leaks
+	 * when its close was missed, like when another plugin cancels the close packet,
+	 * it is then closed with {@link CloseReason#SERVER_CLOSE}.
+	 * Default is 8
+	 *
+	 * @param sessionsPerTick sessions checked per tick, 0 to disable
+	 */
+	public void setSweepRate(int sessionsPerTick) {
+		Preconditions.checkArgument(sessionsPerTick >= 0, "sessionsPerTick is negative");
+
+		this.sweepRate = sessionsPerTick;
+	}
+
+	/**
+	 * <p>
+	 * Runs synchronous responses on a separate executor, so they can block
+	 * on I/O like database queries without stalling ticks. Menus stay open
+	 * and ignore input until the response returns, the result is then
+	 * applied on the thread owning the player.
+	 * </p>
+	 * Responses run on virtual threads on Java 21+, older versions use a small
+	 * thread pool. Responses must not touch the inventory themselves.
+	 * Disabled by default
+	 *
+	 * @param maxConcurrent most responses running at once, 0 to disable
+	 */
+	public synchronized void setBlockingResponses(int maxConcurrent) {
+		Preconditions.checkArgument(maxConcurrent >= 0, "maxConcurrent is negative");
+		Preconditions.checkState(maxConcurrent == 0 || !disposed, "factory is disposed");
+
+		ResponseExecutor previous = responseExecutor;
+		responseExecutor = maxConcurrent == 0 ? null : new ResponseExecutor(plugin, maxConcurrent);
+
+		if(previous != null)
+			previous.executor.shutdown();
+	}
+
+	/**
+	 * Gets how many blocking responses may run at once
+	 *
+	 * @return most responses running at once, 0 if disabled
+	 * @see #setBlockingResponses(int)
+	 */
+	public int getBlockingResponses() {
+		ResponseExecutor executor = responseExecutor;
+		return executor == null ? 0 : executor.maxConcurrent;
+	}
+
+	/**
+	 * <p>
+	 * Spreads menu opens and reopens across ticks, so prompting every online
+	 * player at once doesn't open hundreds of inventories in one tick.
+	 * Opens are admitted in the order they were made, at least one per tick,
+	 * and a newer open of a player replaces one still queued.
+	 * </p>
+	 * Disabled by default, opens then happen right away
+	 *
+	 * @param opensPerTick most opens per tick, 0 for no limit
+	 * @param nanosPerTick time opens may take per tick in nanoseconds, 0 for no limit
+	 */
+	public void setOpenBudget(int opensPerTick, long nanosPerTick) {
+		Preconditions.checkArgument(opensPerTick >= 0, "opensPerTick is negative");
+		Preconditions.checkArgument(nanosPerTick >= 0, "nanosPerTick is negative");
+
+		this.openRate = opensPerTick;
+		this.openBudget = nanosPerTick;
+	}
+
+	/**
+	 * Gets how many opens are waiting to be admitted
+	 *
+	 * @return amount of queued opens
+	 * @see #setOpenBudget(int, long)
+	 */
+	public int getQueuedOpens() {
+		return latestOpens.size();
+	}
+
+	/**
+	 * Gets how many queued opens were admitted
+	 *
+	 * @return amount of admitted opens
+	 * @see #setOpenBudget(int, long)
+	 */
+	public long getAdmittedOpens() {
+		return admittedOpens.sum();
+	}
+
+	/**
+	 * Gets how long admitted opens waited in the queue in total,
+	 * divide by {@link #getAdmittedOpens()} for the average
+	 *
+	 * @return total wait time in nanoseconds
+	 * @see #setOpenBudget(int, long)
+	 */
+	public long getOpenWaitTime() {
+		return openWaitTime.sum();
+	}
+
+	/**
+	 * Sets how long queued main thread work, like closes from packet threads,
+	 * may run each tick. Work over the budget carries over to the next tick.
+	 * Default is 2 milliseconds. Region threaded servers run the work
+	 * on the player's region instead
+	 *
+	 * @param nanos budget in nanoseconds, 0 to run one task per tick
+	 */
+	public void setSyncBudget(long nanos) {
+		Preconditions.checkArgument(nanos >= 0, "nanos is negative");
+
+		this.syncBudget = nanos;
+	}
+
+	/**
+	 * Gets how many tasks are waiting to run on the main thread
+	 *
+	 * @return amount of queued sync tasks
+	 * @see #setSyncBudget(long)
+	 */
+	public int getQueuedSyncTasks() {
+		return queuedSyncTasks.get();
+	}
+
+	/**
+	 * Gets how long the queued sync tasks ran during the last tick
+	 *
+	 * @return drain time in nanoseconds
+	 * @see #setSyncBudget(long)
+	 */
+	public long getSyncDrainTime() {
+		return syncDrainTime;
+	}
+
+	/**
+	 * Gets how many leaked sessions were found and closed
+	 *
+	 * @return amount of leaked sessions
+	 * @see #setSweepRate(int)
+	 */
+	public long getLeakedSessions() {
+		return leakedSessions.sum();
+	}
+
+	/**
+	 * Gets how many of the factory's own packets, like repair cost resets
+	 * and virtual menu contents, were sent without packet listeners processing them
+	 *
+	 * @return amount of packets sent directly
+	 */
+	public long getDirectPackets() {
+		return directPackets.sum();
+	}
+
+	/**
+	 * Gets how anvil packets are intercepted by this factory
+	 *
+	 * @return backend of this factory
+	 */
+	public Backend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Makes a new menu
+	 *
+	 * @return created menu
+	 */
+	public Menu newMenu() {
+		return new Menu(null, null, null);
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param title anvil title
+	 * @return created menu
+	 */
+	public Menu newMenu(String title) {
+		return new Menu(title, null, null);
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param item item to show
+	 * @return created menu
+	 */
+	public Menu newMenu(ItemStack item) {
+		return new Menu(null, item, null);
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param title anvil title
+	 * @param item item to show
+	 * @return created menu
+	 */
+	public Menu newMenu(String title, ItemStack item) {
+		return new Menu(title, item, null);
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param title anvil title
+	 * @param response response callback
+	 * @return created menu
+	 */
+	public Menu newMenu(String title, AnvilResponse response) {
+		return new Menu(title, null, response);
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param item item to show
+	 * @param response response callback
+	 * @return created menu
+	 */
+	public Menu newMenu(ItemStack item, AnvilResponse response) {
+		return new Menu(null, item, response);
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param title anvil title
+	 * @param item item to show
+	 * @param response response callback
+	 * @return created menu
+	 */
+	public Menu newMenu(String title, ItemStack item, AnvilResponse response) {
+		return new Menu(title, item, response);
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param title anvil title
+	 * @param itemName default item name
+	 * @param response response callback
+	 * @return created menu
+	 */
+	public Menu newMenu(String title, String itemName, AnvilResponse response) {
+		Menu menu = newMenu(title, itemName);
+
+		menu.setResponse(response);
+
+		return menu;
+	}
+
+	/**
+	 * Makes a new menu with the specified parameters
+	 *
+	 * @param title anvil title
+	 * @param itemName default item name
+	 * @return created menu
+	 */
+	public Menu newMenu(String title, String itemName) {
+		Menu menu = new Menu(title, null, null);
+
+		menu.setItemName(itemName);
+
+		return menu;
+	}
+
+	/**
+	 * Represents an anvil response callback
+	 */
+	@FunctionalInterface
+	public interface AnvilResponse {
+		/**
+		 * Execute response
+		 *
+		 * @param player player
+		 * @param reason reason menu was closed
+		 * @param itemName final item name
+		 * @return what should happen after
+		 */
+		Result execute(Player player, CloseReason reason, String itemName);
+	}
+
+	/**
+	 * Represents an anvil response callback that completes later, like after
+	 * a database lookup. It's called on the thread owning the player and the
+	 * stage can be completed from any thread, the result is then applied on
+	 * the thread owning the player. Until then the menu stays open and further
+	 * input is ignored
+	 */
+	@FunctionalInterface
+	public interface AsyncAnvilResponse {
+		/**
+		 * Execute response
+		 *
+		 * @param player player
+		 * @param reason reason menu was closed
+		 * @param itemName final item name
+		 * @return stage completed with what should happen after
+		 */
+		CompletionStage<Result> execute(Player player, CloseReason reason, String itemName);
+	}
+
+	/**
+	 * Ways anvil packets can be intercepted
+	 */
+	public enum Backend {
+		/**
+		 * Listen through a ProtocolLib packet listener
+		 */
+		PROTOCOLLIB,
+		/**
+		 * Decode packets in a handler injected into the player's
+		 * channel while a menu is open, bypassing ProtocolLib's listeners
+		 */
+		NETTY
+	}
+
+	/**
+	 * Reasons for why the anvil menu was closed
+	 */
+	public enum CloseReason {
+		/**
+		 * Item was clicked
+		 */
+		CLICK,
+		/**
+		 * Player disconnected
+		 */
+		DISCONNECT,
+		/**
+		 * Server closed the menu
+		 */
+		SERVER_CLOSE,
+		/**
+		 * Player closed the menu
+		 */
+		CLIENT_CLOSE,
+		/**
+		 * Menu was idle or open for too long
+		 *
+		 * @see Menu#setIdleTimeout(long)
+		 * @see Menu#setDeadline(long)
+		 */
+		TIMEOUT
+	}
+
+	/**
+	 * Represents what should happen after the response callback
+	 */
+	public enum Result {
+		/**
+		 * Close the menu
+		 */
+		CLOSE,
+		/**
+		 * Reopen the menu with the default item name
+		 */
+		REOPEN,
+		/**
+		 * Reopen the menu with the previously inputted item name
+		 */
+		REOPEN_WITH_TEXT
+	}
+
+	/**
+	 * Route the dispatcher hands this factory's events to. It also supplies
+	 * the plugin, tells whether packet events are needed and rebinds
+	 * the sessions when the dispatcher retires
+	 */
+	private class Route implements Consumer<Object>, Supplier<Plugin>, BooleanSupplier, Runnable {
+		@Override
+		public void accept(Object event) {
+			dispatch(event);
+		}
+
+		@Override
+		public Plugin get() {
+			return plugin;
+		}
+
+		@Override
+		public boolean getAsBoolean() {
+			return true;
+		}
+
+		@Override
+		public void run() {
+			rebind();
+		}
+	}
+
+	/**
+	 * Route of {@link Backend#NETTY} factories, which only take Bukkit events
+	 * from the dispatcher, so its packet listener isn't needed for these
+	 */
+	private final class EventRoute extends Route {
+		@Override
+		public void accept(Object event) {
+			if(!(event instanceof PacketEvent))
+				dispatch(event);
+		}
+
+		@Override
+		public boolean getAsBoolean() {
+			return false;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Listens once for all factories on the server and routes each event to the
+	 * factory that bound the player, with a single lookup no matter how many factories exist.
+	 * </p>
+	 * It's shared through the {@link ServicesManager}, so factories of other plugins
+	 * with their own copy of this class find it too, as long as it has the same
+	 * {@link #DISPATCHER_PROTOCOL}. Only JDK types are used between copies: a factory
+	 * binds a player's entity id to its route with {@link #apply(Integer, Consumer)}
+	 * and gets back a {@link Runnable} to unbind, or null once the dispatcher retired.
+	 * A route is a {@link Supplier} of its plugin, a {@link BooleanSupplier} of whether
+	 * it needs packet events and a {@link Runnable} rebinding its sessions.
+	 * When the owning plugin is disabled, the dispatcher retires and the routes
+	 * of other enabled plugins rebind to a new dispatcher owned by one of them
+	 */
+	private static final class Dispatcher implements BiFunction<Integer, Consumer<Object>, Runnable> {
+		// Bumped whenever the contract between copies changes
+		private static final int DISPATCHER_PROTOCOL = 1;
+
+		private final Plugin plugin;
+		private final IntMap<Binding> routes = new IntMap<>();
+		private final Listener listener;
+		private final PacketAdapter packetListener;
+		private final AtomicBoolean unlistenScheduled = new AtomicBoolean();
+
+		// Guarded by this
+		private int packetBindings = 0;
+		private boolean listening = false;
+		private boolean listeningPackets = false;
+		private boolean retired = false;
+
+		private static final class Binding {
+			private final Consumer<Object> route;
+			private final Plugin plugin;
+			private final boolean packets;
+
+			private Binding(Consumer<Object> route) {
+				this.route = route;
+				this.plugin = route instanceof Supplier<?> s && s.get() instanceof Plugin p ? p : null;
+				this.packets = !(route instanceof BooleanSupplier b) || b.getAsBoolean();
+			}
+		}
+
+		/**
+		 * Finds the dispatcher of the server, registering a new one owned by
+		 * the plugin if there is none
+		 */
+		@SuppressWarnings("unchecked")
+		private static BiFunction<Integer, Consumer<Object>, Runnable> find(Plugin plugin) {
+			ServicesManager services = Bukkit.getServicesManager();
+
+			synchronized(services) {
+				for(Class<?> service : services.getKnownServices()) {
+					if(!isCompatible(service))
+						continue;
+
+					// Same protocol, so the type arguments match too
+					RegisteredServiceProvider<?> registration = services.getRegistration(service);
+					if(registration != null && registration.getProvider() instanceof BiFunction<?, ?, ?> dispatcher)
+						return (BiFunction<Integer, Consumer<Object>, Runnable>) dispatcher;
+				}
+
+				Dispatcher dispatcher = new Dispatcher(plugin);
+				services.register(Dispatcher.class, dispatcher, plugin, ServicePriority.Normal);
+
+				return dispatcher;
+			}
+		}
+
+		/**
+		 * Checks whether the service is a copy of this class with the same protocol.
+		 * Shaded copies are relocated, so they're recognized by their protocol field
+		 */
+		private static boolean isCompatible(Class<?> service) {
+			if(service == Dispatcher.class)
+				return true;
+
+			try {
+				Field field = service.getDeclaredField("DISPATCHER_PROTOCOL");
+				if(field.getType() != int.class || !Modifier.isStatic(field.getModifiers()))
+					return false;
+
+				field.setAccessible(true);
+				return field.getInt(null) == DISPATCHER_PROTOCOL;
+			} catch(ReflectiveOperationException | RuntimeException | LinkageError e) {
+				return false;
+			}
+		}
+
+		private Dispatcher(Plugin plugin) {
+			this.plugin = plugin;
+
+			this.listener = new Listener() {
+				@EventHandler
+				public void onQuit(PlayerQuitEvent event) {
+					route(event.getPlayer(), event);
+				}
+
+				@EventHandler
+				public void onClick(InventoryClickEvent event) {
+					if(event.getWhoClicked() instanceof Player p)
+						route(p, event);
+				}
+
+				@EventHandler
+				public void onPluginDisable(PluginDisableEvent event) {
+					retire(event.getPlugin());
+				}
+			};
+
+			this.packetListener = new PacketAdapter(plugin, PacketType.Play.Server.CLOSE_WINDOW,
+					PacketType.Play.Server.OPEN_WINDOW, PacketType.Play.Client.CLOSE_WINDOW,
+					PacketType.Play.Client.ITEM_NAME, PacketType.Play.Client.WINDOW_CLICK) {
+				public void onPacketReceiving(PacketEvent event) {
+					if(!event.isPlayerTemporary())
+						route(event.getPlayer(), event);
+				}
+
+				public void onPacketSending(PacketEvent event) {
+					if(!event.isPlayerTemporary())
+						route(event.getPlayer(), event);
+				}
+			};
+		}
+
+		/**
+		 * Retires the dispatcher when its owning plugin is disabled, as Bukkit and
+		 * ProtocolLib drop its listeners and its class goes away with the plugin.
+		 * Routes of other enabled plugins then rebind, registering a new dispatcher
+		 */
+		private void retire(Plugin disabled) {
+			Set<Runnable> rebinds = new HashSet<>();
+			ServicesManager services = Bukkit.getServicesManager();
+
+			synchronized(services) {
+				synchronized(this) {
+					if(disabled != plugin || retired)
+						return;
+
+					retired = true;
+
+					if(listeningPackets)
+						protocolManager.removePacketListener(packetListener);
+					if(listening)
+						HandlerList.unregisterAll(listener);
+
+					listening = false;
+					listeningPackets = false;
+					services.unregister(this);
+
+					routes.forEach(binding -> {
+						if(binding.plugin != null && binding.plugin != disabled && binding.plugin.isEnabled()
+								&& binding.route instanceof Runnable rebind)
+							rebinds.add(rebind);
+					});
+				}
+			}
+
+			// Outside the locks, the first rebind registers the new dispatcher
+			rebinds.forEach(Runnable::run);
+		}
+
+		private void route(Player p, Object event) {
+			if(routes.isEmpty())
+				return;
+
+			Binding binding = routes.get(p.getEntityId());
+			if(binding != null)
+				binding.route.accept(event);
+		}
+
+		@Override
+		public Runnable apply(Integer entityId, Consumer<Object> route) {
+			int id = entityId;
+			Binding binding = new Binding(route);
+
+			synchronized(this) {
+				// The factory finds the new dispatcher instead
+				if(retired)
+					return null;
+
+				Binding previous = routes.put(id, binding);
+
+				if(previous != null && previous.packets)
+					packetBindings--;
+				if(binding.packets)
+					packetBindings++;
+
+				listen();
+			}
+
+			return () -> unbind(id, binding);
+		}
+
+		private synchronized void unbind(int id, Binding binding) {
+			// The player may have been bound again since
+			if(!routes.remove(id, binding))
+				return;
+
+			if(binding.packets)
+				packetBindings--;
+
+			if(!routes.isEmpty() && packetBindings > 0)
+				return;
+
+			// Detach a tick later so reopening a menu doesn't re-register listeners,
+			// or right away while the owning plugin is being disabled
+			if(!plugin.isEnabled())
+				unlistenIfIdle();
+			else if(unlistenScheduled.compareAndSet(false, true))
+				runGlobal(plugin, this::unlistenIfIdle);
+		}
+
+		/**
+		 * Attaches the listeners needed by the current bindings
+		 */
+		private void listen() {
+			if(!listening) {
+				listening = true;
+				Bukkit.getServer().getPluginManager().registerEvents(listener, plugin);
+			}
+
+			if(!listeningPackets && packetBindings > 0) {
+				listeningPackets = true;
+				protocolManager.addPacketListener(packetListener);
+			}
+		}
+
+		/**
+		 * Detaches the listeners no binding needs anymore
+		 */
+		private synchronized void unlistenIfIdle() {
+			unlistenScheduled.set(false);
+
+			if(listeningPackets && packetBindings == 0) {
+				listeningPackets = false;
+				protocolManager.removePacketListener(packetListener);
+			}
+
+			if(listening && routes.isEmpty()) {
+				listening = false;
+				HandlerList.unregisterAll(listener);
+			}
+		}
+	}
+
+	/**
+	 * Netty and packet field reflection, only resolved when {@link Backend#NETTY} is used.
+	 * Int fields are read in declaration order, like ProtocolLib's {@code getIntegers()}
+	 */
+	private static final class NettyAccess {
+		private static final Class<?> itemNamePacket = PacketType.Play.Client.ITEM_NAME.getPacketClass();
+		private static final Class<?> clientClosePacket = PacketType.Play.Client.CLOSE_WINDOW.getPacketClass();
+		private static final Class<?> serverClosePacket = PacketType.Play.Server.CLOSE_WINDOW.getPacketClass();
+		private static final Class<?> windowClickPacket = PacketType.Play.Client.WINDOW_CLICK.getPacketClass();
+		private static final Class<?> openWindowPacket = PacketType.Play.Server.OPEN_WINDOW.getPacketClass();
+
+		private static final MethodHandle connection;
+		private static final MethodHandle networkManager;
+		private static final MethodHandle channel;
+		private static final MethodHandle itemName;
+		private static final MethodHandle closeWindowId;
+		private static final MethodHandle clientCloseWindowId;
+		private static final MethodHandle clickWindowId;
+		private static final MethodHandle clickSlot;
+		private static final MethodHandle openWindowId;
+
+		static {
+			try {
+				connection = getter(FuzzyReflection.fromClass(MinecraftReflection.getEntityPlayerClass(), true)
+						.getFieldByType("connection", MinecraftReflection.getPlayerConnectionClass()), Object.class);
+				networkManager = getter(FuzzyReflection.fromClass(MinecraftReflection.getPlayerConnectionClass(), true)
+						.getFieldByType("networkManager", MinecraftReflection.getNetworkManagerClass()), Object.class);
+				channel = getter(FuzzyReflection.fromClass(MinecraftReflection.getNetworkManagerClass(), true)
+						.getFieldByType("channel", Channel.class), Object.class);
+				itemName = getter(FuzzyReflection.fromClass(itemNamePacket, true)
+						.getFieldByType("name", String.class), String.class);
+				closeWindowId = getter(FuzzyReflection.fromClass(serverClosePacket, true)
+						.getFieldByType("containerId", int.class), int.class);
+				clientCloseWindowId = intGetter(clientClosePacket, 0);
+				clickWindowId = intGetter(windowClickPacket, 0);
+				// 1.17.1+ has a state id before the slot
+				clickSlot = intGetter(windowClickPacket, intFields(windowClickPacket).size() >= 4 ? 2 : 1);
+				openWindowId = intGetter(openWindowPacket, 0);
+			} catch(Exception e) {
+				throw new RuntimeException("Reflection error", e);
+			}
+		}
+
+		private static MethodHandle getter(Field field, Class<?> type) throws IllegalAccessException {
+			field.setAccessible(true);
+
+			return MethodHandles.lookup().unreflectGetter(field)
+					.asType(MethodType.methodType(type, Object.class));
+		}
+
+		private static List<Field> intFields(Class<?> packet) {
+			List<Field> fields = new ArrayList<>();
+
+			for(Field field : packet.getDeclaredFields()) {
+				if(field.getType() == int.class && !Modifier.isStatic(field.getModifiers()))
+					fields.add(field);
+			}
+
+			return fields;
+		}
+
+		private static MethodHandle intGetter(Class<?> packet, int index) throws IllegalAccessException {
+			return getter(intFields(packet).get(index), int.class);
+		}
+
+		private static int readInt(MethodHandle getter, Object packet) {
+			try {
+				return (int) getter.invokeExact(packet);
+			} catch(Throwable t) {
+				throw new RuntimeException("Error reading " + packet.getClass().getSimpleName(), t);
+			}
+		}
+
+		private static Channel getChannel(Player player) throws Throwable {
+			Object handle = (Object) getHandle.invokeExact((Object) player);
+			Object conn = (Object) connection.invokeExact(handle);
+			Object manager = (Object) networkManager.invokeExact(conn);
+
+			return (Channel) (Object) channel.invokeExact(manager);
+		}
+	}
+
+	/**
+	 * Runs blocking responses with bounded concurrency,
+	 * on virtual threads where the runtime has them
+	 */
+	private static final class ResponseExecutor {
+		// Java 21+, looked up so older runtimes still work
+		private static final MethodHandle newVirtualThreadPerTaskExecutor;
+		// Platform threads are costly, so the fallback pool stays small
+		private static final int MAX_PLATFORM_THREADS = 16;
+
+		static {
+			MethodHandle handle;
+			try {
+				handle = MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+						MethodType.methodType(ExecutorService.class));
+			} catch(ReflectiveOperationException e) {
+				handle = null;
+			}
+
+			newVirtualThreadPerTaskExecutor = handle;
+		}
+
+		private final ExecutorService executor;
+		private final Semaphore permits;
+		private final int maxConcurrent;
+
+		private ResponseExecutor(Plugin plugin, int maxConcurrent) {
+			this.executor = newExecutor(plugin, maxConcurrent);
+			this.permits = new Semaphore(maxConcurrent);
+			this.maxConcurrent = maxConcurrent;
+		}
+
+		private static ExecutorService newExecutor(Plugin plugin, int maxConcurrent) {
+			if(newVirtualThreadPerTaskExecutor != null) {
+				try {
+					return (ExecutorService) newVirtualThreadPerTaskExecutor.invokeExact();
+				} catch(Throwable t) {
+					plugin.getLogger().log(Level.WARNING, "Error making virtual thread executor", t);
+				}
+			}
+
+			AtomicInteger threads = new AtomicInteger();
+			return Executors.newFixedThreadPool(Math.min(maxConcurrent, MAX_PLATFORM_THREADS), run -> {
+				Thread thread = new Thread(run, plugin.getName() + " Anvil Response #" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		private CompletionStage<Result> submit(Supplier<Result> response) {
+			return CompletableFuture.supplyAsync(() -> {
+				// Virtual threads are cheap to park, the permits bound what they hit
+				permits.acquireUninterruptibly();
+				try {
+					return response.get();
+				} finally {
+					permits.release();
+				}
+			}, executor);
+		}
+	}
+
+	/**
+	 * Open waiting for admission
+	 */
+	private static final class PendingOpen {
+		private final Menu menu;
+		private final Player player;
+		private final Config config;
+		private final ItemStack item;
+		private final String text;
+		private final long queuedAt = System.nanoTime();
+
+		private PendingOpen(Menu menu, Player player, Config config, ItemStack item, String text) {
+			this.menu = menu;
+			this.player = player;
+			this.config = config;
+			this.item = item;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Runs the factory's work on the right threads
+	 */
+	private interface Scheduler {
+		/**
+		 * Gets whether the current thread may touch the player
+		 */
+		boolean isOwner(Player player);
+
+		/**
+		 * Runs the task on the thread owning the player
+		 */
+		void execute(Player player, Runnable task);
+
+		/**
+		 * Runs the task every tick
+		 *
+		 * @return cancels the task
+		 */
+		Runnable repeat(Runnable task);
+	}
+
+	/**
+	 * Runs everything on the main thread, tasks from other threads
+	 * are batched into the per-tick task
+	 */
+	private final class MainThreadScheduler implements Scheduler {
+		@Override
+		public boolean isOwner(Player player) {
+			return Bukkit.isPrimaryThread();
+		}
+
+		@Override
+		public void execute(Player player, Runnable task) {
+			syncTasks.add(task);
+			queuedSyncTasks.incrementAndGet();
+			startTicking();
+		}
+
+		@Override
+		public Runnable repeat(Runnable task) {
+			return Bukkit.getScheduler().runTaskTimer(plugin, task, 1, 1)::cancel;
+		}
+	}
+
+	/**
+	 * Runs player work on the region owning the player, so menus
+	 * in different regions don't wait on each other
+	 */
+	private final class RegionScheduler implements Scheduler {
+		@Override
+		public boolean isOwner(Player player) {
+			return FoliaAccess.isOwner(player);
+		}
+
+		@Override
+		public void execute(Player player, Runnable task) {
+			// Retired players run it on the global region, callbacks still need to run
+			if(!FoliaAccess.execute(player, plugin, task, () -> FoliaAccess.execute(plugin, task)))
+				FoliaAccess.execute(plugin, task);
+		}
+
+		@Override
+		public Runnable repeat(Runnable task) {
+			return FoliaAccess.repeat(plugin, task);
+		}
+	}
+
+	/**
+	 * Reflection for Folia's schedulers, only resolved on region threaded servers
+	 */
+	private static final class FoliaAccess {
+		private static final MethodHandle isOwnedByCurrentRegion;
+		private static final MethodHandle getScheduler;
+		private static final MethodHandle run;
+		private static final MethodHandle globalExecute;
+		private static final MethodHandle globalRunAtFixedRate;
+		private static final MethodHandle cancel;
+
+		static {
+			try {
+				Class<?> entityScheduler = Class.forName("io.papermc.paper.threadedregions.scheduler.EntityScheduler");
+				Class<?> globalScheduler = Class.forName("io.papermc.paper.threadedregions.scheduler.GlobalRegionScheduler");
+				Class<?> scheduledTask = Class.forName("io.papermc.paper.threadedregions.scheduler.ScheduledTask");
+				Object global = Bukkit.class.getMethod("getGlobalRegionScheduler").invoke(null);
+
+				isOwnedByCurrentRegion = handle(Bukkit.class.getMethod("isOwnedByCurrentRegion", Entity.class),
+						boolean.class, Player.class);
+				getScheduler = handle(Entity.class.getMethod("getScheduler"), Object.class, Player.class);
+				run = handle(entityScheduler.getMethod("run", Plugin.class, Consumer.class, Runnable.class),
+						Object.class, Object.class, Plugin.class, Consumer.class, Runnable.class);
+				globalExecute = handle(globalScheduler.getMethod("execute", Plugin.class, Runnable.class),
+						void.class, Object.class, Plugin.class, Runnable.class).bindTo(global);
+				globalRunAtFixedRate = handle(globalScheduler.getMethod("runAtFixedRate", Plugin.class, Consumer.class, long.class, long.class),
+						Object.class, Object.class, Plugin.class, Consumer.class, long.class, long.class).bindTo(global);
+				cancel = handle(scheduledTask.getMethod("cancel"), void.class, Object.class);
+			} catch(Exception e) {
+				throw new RuntimeException("Reflection error", e);
+			}
+		}
+
+		private static MethodHandle handle(Method method, Class<?> returnType, Class<?>... parameterTypes)
+				throws IllegalAccessException {
+			return MethodHandles.publicLookup().unreflect(method)
+					.asType(MethodType.methodType(returnType, parameterTypes));
+		}
+
+		private static boolean isOwner(Player player) {
+			try {
+				return (boolean) isOwnedByCurrentRegion.invokeExact(player);
+			} catch(Throwable t) {
+				throw new RuntimeException("Error checking region owner", t);
+			}
+		}
+
+		/**
+		 * Runs the task on the player's scheduler
+		 *
+		 * @return false if the player is already retired and nothing was scheduled
+		 */
+		private static boolean execute(Player player, Plugin plugin, Runnable task, Runnable retired) {
+			Consumer<Object> consumer = scheduled -> task.run();
+
+			try {
+				Object scheduler = (Object) getScheduler.invokeExact(player);
+				return (Object) run.invokeExact(scheduler, plugin, consumer, retired) != null;
+			} catch(Throwable t) {
+				throw new RuntimeException("Error scheduling player task", t);
+			}
+		}
+
+		private static void execute(Plugin plugin, Runnable task) {
+			try {
+				globalExecute.invokeExact(plugin, task);
+			} catch(Throwable t) {
+				throw new RuntimeException("Error scheduling global task", t);
+			}
+		}
+
+		private static Runnable repeat(Plugin plugin, Runnable task) {
+			Consumer<Object> consumer = scheduled -> task.run();
+
+			Object scheduled;
+			try {
+				scheduled = (Object) globalRunAtFixedRate.invokeExact(plugin, consumer, 1L, 1L);
+			} catch(Throwable t) {
+				throw new RuntimeException("Error scheduling global task", t);
+			}
+
+			return () -> {
+				try {
+					cancel.invokeExact(scheduled);
+				} catch(Throwable t) {
+					throw new RuntimeException("Error cancelling global task", t);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Reflection for virtual menus, only resolved when one is opened
+	 */
+	private static final class VirtualAccess {
+		// Above the ids the server cycles through for real containers
+		private static final int FIRST_WINDOW_ID = 101;
+		private static final int WINDOW_IDS = 27;
+		private static final AtomicInteger windowIds = new AtomicInteger();
+
+		private static final Class<?> menuTypeClass =
+				getMinecraftClass("world.inventory.Containers", "world.inventory.MenuType");
+		private static final Object anvilMenuType;
+
+		static {
+			try {
+				Class<?> anvilClass = getMinecraftClass("world.inventory.ContainerAnvil", "world.inventory.AnvilMenu");
+				Object type = null;
+
+				// The registry entry is the static field typed MenuType<AnvilMenu>
+				for(Field field : menuTypeClass.getDeclaredFields()) {
+					if(Modifier.isStatic(field.getModifiers()) && field.getType() == menuTypeClass
+							&& field.getGenericType() instanceof ParameterizedType generic
+							&& generic.getActualTypeArguments()[0] == anvilClass) {
+						field.setAccessible(true);
+						type = field.get(null);
+						break;
+					}
+				}
+
+				if(type == null)
+					throw new RuntimeException("Anvil menu type not found");
+
+				anvilMenuType = type;
+			} catch(Exception e) {
+				throw new RuntimeException("Reflection error", e);
+			}
+		}
+
+		private static int nextWindowId() {
+			return FIRST_WINDOW_ID + Math.floorMod(windowIds.getAndIncrement(), WINDOW_IDS);
+		}
+	}
+
+	/**
+	 * Decodes anvil packets of a player straight from their channel
+	 */
+	private final class PacketInterceptor extends ChannelDuplexHandler {
+		private final Player player;
+
+		private PacketInterceptor(Player player) {
+			this.player = player;
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			Class<?> type = msg.getClass();
+
+			if(type == NettyAccess.itemNamePacket) {
+				String name;
+				try {
+					name = (String) NettyAccess.itemName.invokeExact(msg);
+				} catch(Throwable t) {
+					throw new RuntimeException("Error reading item name", t);
+				}
+
+				if(onRename(player, name))
+					return;
+			} else if(type == NettyAccess.clientClosePacket) {
+				if(onClientClose(player, NettyAccess.readInt(NettyAccess.clientCloseWindowId, msg)))
+					return;
+			} else if(type == NettyAccess.windowClickPacket) {
+				if(onWindowClick(player, NettyAccess.readInt(NettyAccess.clickWindowId, msg),
+						NettyAccess.readInt(NettyAccess.clickSlot, msg)))
+					return;
+			}
+
+			super.channelRead(ctx, msg);
+		}
+
+		@Override
+		public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+			Class<?> type = msg.getClass();
+
+			if(type == NettyAccess.serverClosePacket)
+				onServerClose(player, NettyAccess.readInt(NettyAccess.closeWindowId, msg));
+			else if(type == NettyAccess.openWindowPacket)
+				onServerOpen(player, NettyAccess.readInt(NettyAccess.openWindowId, msg));
+
+			super.write(ctx, msg, promise);
+		}
+	}
+
+	/**
+	 * Open addressing map from int keys to values. Reads are lock free, writes are
+	 * done in place under a lock and only copy the table when it has to grow.
+	 * Removed keys leave a tombstone, which later puts reuse
+	 */
+	private static final class IntMap<V> {
+		private static final int MIN_CAPACITY = 16;
+		private static final Entry<?> TOMBSTONE = new Entry<>(0, null);
+
+		// null marks a free slot
+		private volatile AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+		private volatile int size = 0;
+		// Live entries and tombstones, only touched under the lock
+		private int used = 0;
+
+		private static final class Entry<V> {
+			private final int key;
+			private final V value;
+
+			private Entry(int key, V value) {
+				this.key = key;
+				this.value = value;
+			}
+		}
+
+		private static int mix(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		private static int capacityFor(int size) {
+			// Keep the load factor at or below 0.5
+			return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size) * 4 - 1));
+		}
+
+		/**
+		 * Finds the slot of the key, or the free slot ending its probe sequence
+		 */
+		private static int indexOf(AtomicReferenceArray<? extends Entry<?>> t, int key) {
+			int mask = t.length() - 1;
+
+			for(int i = mix(key) & mask; ; i = (i + 1) & mask) {
+				Entry<?> e = t.get(i);
+				if(e == null || (e != TOMBSTONE && e.key == key))
+					return i;
+			}
+		}
+
+		V get(int key) {
+			AtomicReferenceArray<Entry<V>> t = table;
+			Entry<V> e = t.get(indexOf(t, key));
+			return e == null ? null : e.value;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * Gets the amount of slots in the current table, always a power of two
+		 */
+		int capacity() {
+			return table.length();
+		}
+
+		/**
+		 * Gets the value in a slot of the current table, the index is masked to the capacity
+		 *
+		 * @return the value, or null if the slot is free
+		 */
+		V valueAt(int slot) {
+			AtomicReferenceArray<Entry<V>> t = table;
+			Entry<V> e = t.get(slot & (t.length() - 1));
+			return e == null ? null : e.value;
+		}
+
+		/**
+		 * Runs the action for every value of the current table,
+		 * the map can be modified meanwhile
+		 */
+		void forEach(Consumer<? super V> action) {
+			AtomicReferenceArray<Entry<V>> t = table;
+
+			for(int i = 0; i < t.length(); i++) {
+				Entry<V> e = t.get(i);
+				if(e != null && e.value != null)
+					action.accept(e.value);
+			}
+		}
+
+		synchronized V put(int key, V value) {
+			AtomicReferenceArray<Entry<V>> t = table;
+			int i = indexOf(t, key);
+			Entry<V> previous = t.get(i);
+
+			if(previous != null) {
+				t.set(i, new Entry<>(key, value));
+				return previous.value;
+			}
+
+			if((used + 1) * 2 > t.length()) {
+				t = rehash(t, size + 1);
+				i = indexOf(t, key);
+			}
+
+			// Reuse the first tombstone of the probe sequence, if there is one
+			int mask = t.length() - 1;
+			int j = mix(key) & mask;
+			while(j != i && t.get(j) != TOMBSTONE)
+				j = (j + 1) & mask;
+
+			if(j == i)
+				used++;
+
+			t.set(j, new Entry<>(key, value));
+			size++;
+			table = t;
+			return null;
+		}
+
+		/**
+		 * Removes the key only if it is mapped to the specified value
+		 *
+		 * @return whether the key was removed
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized boolean remove(int key, V value) {
+			AtomicReferenceArray<Entry<V>> t = table;
+			int i = indexOf(t, key);
+			Entry<V> e = t.get(i);
+
+			if(e == null || e.value != value)
+				return false;
+
+			if(--size == 0) {
+				// Start over instead of accumulating tombstones
+				table = new AtomicReferenceArray<>(MIN_CAPACITY);
+				used = 0;
+			} else
+				t.set(i, (Entry<V>) TOMBSTONE);
+
+			return true;
+		}
+
+		/**
+		 * Copies the live entries into a new table sized for the new size, dropping tombstones
+		 */
+		private AtomicReferenceArray<Entry<V>> rehash(AtomicReferenceArray<Entry<V>> t, int size) {
+			AtomicReferenceArray<Entry<V>> copy = new AtomicReferenceArray<>(capacityFor(size));
+
+			for(int i = 0; i < t.length(); i++) {
+				Entry<V> e = t.get(i);
+				if(e != null && e != TOMBSTONE)
+					copy.set(indexOf(copy, e.key), e);
+			}
+
+			used = this.size;
+			return copy;
+		}
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param title anvil title
-	 * @param itemName default item name
-	 * @param response response callback
-	 * @return created menu
+	 * Node of a {@link TimingWheel}, linked into one slot at a time
 	 */
-	public Menu newMenu(String title, String itemName, AnvilResponse response) {
-		Menu menu = newMenu(title, itemName);
-
-		menu.setResponse(response);
+	private static class Timeout {
+		private Timeout next;
+		private Timeout prev;
+		private long due;
 
-		return menu;
+		boolean isScheduled() {
+			return next != null;
+		}
 	}
 
 	/**
-	 * Makes a new menu with the specified parameters
-	 *
-	 * @param title anvil title
-	 * @param itemName default item name
-	 * @return created menu
+	 * Hierarchical hashed timing wheel advanced once per tick. Scheduling, cancelling
+	 * and expiring are O(1) per timeout, levels cascade as lower ones wrap around.
+	 * Not thread safe, only used from the ticking thread, though the current tick may be read anywhere
 	 */
-	public Menu newMenu(String title, String itemName) {
-		Menu menu = new Menu(title, null, null);
+	private static final class TimingWheel {
+		private static final int BITS = 6;
+		private static final int SLOTS = 1 << BITS;
+		private static final int LEVELS = 4;
+		// Timeouts further out are parked at the top level and cascaded again
+		private static final long MAX_SPAN = 1L << (BITS * LEVELS);
+
+		private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+		private volatile long now = 0;
+
+		private TimingWheel() {
+			for(Timeout[] wheel : wheels) {
+				for(int i = 0; i < SLOTS; i++) {
+					Timeout sentinel = new Timeout();
+					sentinel.next = sentinel.prev = sentinel;
+					wheel[i] = sentinel;
+				}
+			}
+		}
 
-		menu.setItemName(itemName);
+		private void schedule(Timeout timeout, long due) {
+			cancel(timeout);
+			timeout.due = Math.max(due, now + 1);
+			insert(timeout);
+		}
 
-		return menu;
-	}
+		private void cancel(Timeout timeout) {
+			if(!timeout.isScheduled())
+				return;
+
+			timeout.prev.next = timeout.next;
+			timeout.next.prev = timeout.prev;
+			timeout.next = timeout.prev = null;
+		}
+
+		private void insert(Timeout timeout) {
+			long due = Math.min(timeout.due, now + MAX_SPAN - 1);
+			long delta = due - now;
+			int level = 0;
+
+			while(level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+				level++;
+
+			Timeout sentinel = wheels[level][(int) (due >>> (BITS * level)) & (SLOTS - 1)];
+
+			timeout.next = sentinel;
+			timeout.prev = sentinel.prev;
+			sentinel.prev.next = timeout;
+			sentinel.prev = timeout;
+		}
 
-	/**
-	 * Represents an anvil response callback
-	 */
-	@FunctionalInterface
-	public interface AnvilResponse {
 		/**
-		 * Execute response
+		 * Advances the wheel by one tick
 		 *
-		 * @param player player
-		 * @param reason reason menu was closed
-		 * @param itemName final item name
-		 * @return what should happen after
+		 * @param expired called for every timeout that is now due
 		 */
-		Result execute(Player player, CloseReason reason, String itemName);
+		private void advance(Consumer<Timeout> expired) {
+			now++;
+
+			// Move timeouts of wrapped levels down, they are all due within the level below
+			for(int level = 1; level < LEVELS; level++) {
+				if((now & ((1L << (BITS * level)) - 1)) != 0)
+					break;
+
+				drain(wheels[level][(int) (now >>> (BITS * level)) & (SLOTS - 1)], this::insert);
+			}
+
+			drain(wheels[0][(int) now & (SLOTS - 1)], timeout -> {
+				if(timeout.due <= now)
+					expired.accept(timeout);
+				else
+					insert(timeout);
+			});
+		}
+
+		private static void drain(Timeout sentinel, Consumer<Timeout> action) {
+			Timeout timeout = sentinel.next;
+
+			// Detach the whole slot first, the action may insert into it again
+			sentinel.next = sentinel.prev = sentinel;
+
+			while(timeout != sentinel) {
+				Timeout next = timeout.next;
+
+				timeout.next = timeout.prev = null;
+				action.accept(timeout);
+				timeout = next;
+			}
+		}
 	}
 
 	/**
-	 * Reasons for why the anvil menu was closed
+	 * Immutable configuration of a {@link Menu}. Setters publish a new
+	 * instance, so readers on any thread see a consistent snapshot
 	 */
-	public enum CloseReason {
+	private static final class Config {
+		private final String title;
+		// Never handed out, only copies of it
+		private final ItemStack item;
+		private final String itemName;
+		// Only one of the responses is set
+		private final AnvilResponse response;
+		private final AsyncAnvilResponse asyncResponse;
+		private final boolean stripColor;
+		private final boolean virtual;
+		private final long idleTimeout;
+		private final long deadline;
+
+		private Config(String title, ItemStack item, AnvilResponse response, AsyncAnvilResponse asyncResponse,
+					   boolean stripColor, boolean virtual, long idleTimeout, long deadline) {
+			this.title = title;
+			this.item = item;
+			this.response = response;
+			this.asyncResponse = asyncResponse;
+			this.stripColor = stripColor;
+			this.virtual = virtual;
+			this.idleTimeout = idleTimeout;
+			this.deadline = deadline;
+
+			ItemMeta meta = item.getItemMeta();
+			this.itemName = meta == null ? null : meta.getDisplayName();
+		}
+
+		private Config withTitle(String title) {
+			return new Config(title, item, response, asyncResponse, stripColor, virtual, idleTimeout, deadline);
+		}
+
+		private Config withItem(ItemStack item) {
+			return new Config(title, item, response, asyncResponse, stripColor, virtual, idleTimeout, deadline);
+		}
+
+		private Config withResponse(AnvilResponse response) {
+			return new Config(title, item, response, null, stripColor, virtual, idleTimeout, deadline);
+		}
+
+		private Config withAsyncResponse(AsyncAnvilResponse asyncResponse) {
+			return new Config(title, item, null, asyncResponse, stripColor, virtual, idleTimeout, deadline);
+		}
+
+		private Config withStripColor(boolean stripColor) {
+			return new Config(title, item, response, asyncResponse, stripColor, virtual, idleTimeout, deadline);
+		}
+
+		private Config withVirtual(boolean virtual) {
+			return new Config(title, item, response, asyncResponse, stripColor, virtual, idleTimeout, deadline);
+		}
+
+		private Config withIdleTimeout(long idleTimeout) {
+			return new Config(title, item, response, asyncResponse, stripColor, virtual, idleTimeout, deadline);
+		}
+
+		private Config withDeadline(long deadline) {
+			return new Config(title, item, response, asyncResponse, stripColor, virtual, idleTimeout, deadline);
+		}
+	}
+
+	/**
+	 * Lifecycle of a session. It only moves forward, from OPENING to OPEN, then to
+	 * CALLBACK or CLOSING_SILENT for whichever close claims it, then to CLOSED.
+	 * Every transition is a compare and set from the state it expects. A reopen
+	 * starts a new session, the old one just closes
+	 */
+	private enum State {
 		/**
-		 * Item was clicked
+		 * Session is added but the menu is still opening
 		 */
-		CLICK,
+		OPENING,
 		/**
-		 * Player disconnected
+		 * Menu is open and accepting input
 		 */
-		DISCONNECT,
+		OPEN,
 		/**
-		 * Server closed the menu
+		 * Menu is being closed without calling the callback
 		 */
-		SERVER_CLOSE,
+		CLOSING_SILENT,
 		/**
-		 * Player closed the menu
+		 * A close won the session and the callback is running
+		 */
+		CALLBACK,
+		/**
+		 * Session is over
 		 */
-		CLIENT_CLOSE
+		CLOSED
 	}
 
 	/**
-	 * Represents what should happen after the response callback
+	 * Represents the state of a menu opened to a player
 	 */
-	public enum Result {
-		/**
-		 * Close the menu
-		 */
-		CLOSE,
-		/**
-		 * Reopen the menu with the default item name
-		 */
-		REOPEN,
+	private static final class Session extends Timeout {
+		private static final AtomicReferenceFieldUpdater<Session, State> STATE =
+				AtomicReferenceFieldUpdater.newUpdater(Session.class, State.class, "state");
+
+		private final Player player;
+		private final int entityId;
+		private final Menu menu;
+		private final int windowId;
+		private final PacketContainer costReset;
+		private final AtomicBoolean costResetQueued = new AtomicBoolean();
+
+		// Virtual menus only exist on the client and have no inventory,
+		// the item is resent on clicks
+		private final Inventory inventory;
+		private final boolean virtual;
+		private final ItemStack item;
+
+		// Text currently in the item name field, null until the player types
+		private volatile String text;
+		private volatile State state = State.OPENING;
+		// Set once the client closed the anvil or another window replaced it
+		private volatile boolean anvilGone = false;
+
+		// Removes the binding to the dispatcher, set before the session is added
+		// and replaced when the session is bound to a new dispatcher
+		private volatile Runnable unbind;
+
+		// Timeouts in ticks, 0 if disabled
+		private final long idleTicks;
+		private final long deadlineTicks;
+		// Wheel tick of the deadline, only touched from the ticking thread
+		private long deadlineTick = 0;
+
+		// Wheel tick of the last input, so idle timeouts count the same ticks as deadlines
+		private volatile long lastInputTick = 0;
+
+		private final long openedAt = System.nanoTime();
+
+		// Rename token bucket, only touched from the player's netty thread
+		private double renameTokens = Double.MAX_VALUE;
+		private long lastRefill = openedAt;
+
+		private Session(Player player, Menu menu, Config config, int windowId, PacketContainer costReset,
+						Inventory inventory, ItemStack item, String text) {
+			this.player = player;
+			this.entityId = player.getEntityId();
+			this.menu = menu;
+			this.idleTicks = config.idleTimeout;
+			this.deadlineTicks = config.deadline;
+			this.windowId = windowId;
+			this.costReset = costReset;
+			this.inventory = inventory;
+			this.virtual = inventory == null;
+			this.item = item;
+			this.text = text;
+		}
+
+		private boolean isTimed() {
+			return idleTicks > 0 || deadlineTicks > 0;
+		}
+
+		private boolean isLive() {
+			State state = this.state;
+			return state == State.OPENING || state == State.OPEN;
+		}
+
+		private boolean compareAndSet(State expected, State state) {
+			return STATE.compareAndSet(this, expected, state);
+		}
+
 		/**
-		 * Reopen the menu with the previously inputted item name
+		 * Moves a live session to the specified state, only one caller can win
+		 *
+		 * @return whether the session was live and is now in the state
 		 */
-		REOPEN_WITH_TEXT
+		private boolean claim(State state) {
+			while(true) {
+				State current = this.state;
+
+				if(current != State.OPENING && current != State.OPEN)
+					return false;
+				if(compareAndSet(current, state))
+					return true;
+			}
+		}
+
+		private boolean tryAcquireRename(long now, double rate, int burst) {
+			if(rate <= 0)
+				return true;
+
+			renameTokens = Math.min(burst, renameTokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+
+			if(renameTokens < 1)
+				return false;
+
+			renameTokens--;
+			return true;
+		}
 	}
 
 	/**
@@ -424,22 +2662,35 @@ public final class AnvilMenuFactory {
 	public final class Menu {
 		private static final AnvilResponse DEFAULT_RESPONSE = (a, b, c) -> Result.CLOSE;
 
-		private final Map<Player, String> itemNames = new ConcurrentHashMap<>();
-		private final Map<Player, String> unmodifiableItemNames =
-				Collections.unmodifiableMap(itemNames);
-		private final List<Player> dontCall =
-				Collections.synchronizedList(new ArrayList<>());
+		private final Set<Player> viewers = ConcurrentHashMap.newKeySet();
 
-		private String title = null;
-		private ItemStack item = new ItemStack(Material.PAPER);
-		private AnvilResponse response;
-
-		private boolean stripColor = true;
+		private final AtomicReference<Config> config;
 
 		private Menu(String title, ItemStack item, AnvilResponse response) {
-			setTitle(title);
-			setItem(item);
-			setResponse(response);
+			Preconditions.checkState(!disposed, "factory is disposed");
+
+			this.config = new AtomicReference<>(new Config(title, copyItem(item),
+					response == null ? DEFAULT_RESPONSE : response, null, true, false, 0, 0));
+		}
+
+		private static ItemStack copyItem(ItemStack item) {
+			return item == null ? new ItemStack(Material.PAPER) : item.clone();
+		}
+
+		private static ItemStack withName(ItemStack item, String name) {
+			item = item.clone();
+			ItemMeta meta = item.getItemMeta();
+
+			if(meta != null) {
+				meta.setDisplayName(name);
+				item.setItemMeta(meta);
+			}
+
+			return item;
+		}
+
+		private void update(UnaryOperator<Config> update) {
+			config.updateAndGet(update);
 		}
 
 		/**
@@ -448,7 +2699,7 @@ public final class AnvilMenuFactory {
 		 * @return title of the anvil menu
 		 */
 		public String getTitle() {
-			return title;
+			return config.get().title;
 		}
 
 		/**
@@ -458,16 +2709,18 @@ public final class AnvilMenuFactory {
 		 * @param title new title
 		 */
 		public void setTitle(String title) {
-			this.title = title;
+			update(config -> config.withTitle(title));
 		}
 
 		/**
-		 * Gets the item in the anvil menu
+		 * Gets the item in the anvil menu.
+		 * The menu keeps its own copy, changes to the returned
+		 * item need to be applied with {@link #setItem(ItemStack)}
 		 *
 		 * @return item in the anvil
 		 */
 		public ItemStack getItem() {
-			return item;
+			return getItemAsCopy();
 		}
 
 		/**
@@ -478,7 +2731,8 @@ public final class AnvilMenuFactory {
 		 * @param item new item
 		 */
 		public void setItem(ItemStack item) {
-			this.item = item == null ? new ItemStack(Material.PAPER) : item;
+			ItemStack copy = copyItem(item);
+			update(config -> config.withItem(copy));
 		}
 
 		/**
@@ -487,12 +2741,7 @@ public final class AnvilMenuFactory {
 		 * @return default item name
 		 */
 		public String getItemName() {
-			ItemMeta meta = item.getItemMeta();
-
-			if(meta == null)
-				return null;
-
-			return meta.getDisplayName();
+			return config.get().itemName;
 		}
 
 		/**
@@ -501,14 +2750,7 @@ public final class AnvilMenuFactory {
 		 * @param name New item name
 		 */
 		public void setItemName(String name) {
-			ItemStack item = getItemAsCopy();
-			ItemMeta meta = item.getItemMeta();
-
-			if(meta != null) {
-				meta.setDisplayName(name);
-				item.setItemMeta(meta);
-			}
-			this.item = item;
+			update(config -> config.withItem(withName(config.item, name)));
 		}
 
 		/**
@@ -517,13 +2759,14 @@ public final class AnvilMenuFactory {
 		 * @return clone of the item in this menu
 		 */
 		public ItemStack getItemAsCopy() {
-			return item.clone();
+			return config.get().item.clone();
 		}
 
 		/**
 		 * Updates the menu for all viewers
 		 */
 		public void update() {
+			// Updating reopens the menu, so iterate over a copy
 			getViewers().forEach(this::update);
 		}
 
@@ -536,24 +2779,15 @@ public final class AnvilMenuFactory {
 			if(player == null || !player.isOnline())
 				return;
 
-			if(!getViewers().contains(player))
+			Session session = sessions.get(player.getEntityId());
+			if(session == null || session.menu != this)
 				return;
 
-			String itemName = itemNames.remove(player);
+			String itemName = session.text;
 			close(player, false);
 
-			ItemStack item = getItemAsCopy();
-
-			if(itemName != null) {
-				ItemMeta meta = item.getItemMeta();
-				if(meta != null) {
-					meta.setDisplayName(itemName);
-					item.setItemMeta(meta);
-				}
-			}
-
-			open(player, item);
-			itemNames.put(player, itemName);
+			Config config = this.config.get();
+			open(player, config, itemName == null ? config.item : withName(config.item, itemName), itemName);
 		}
 
 		/**
@@ -566,15 +2800,23 @@ public final class AnvilMenuFactory {
 			if(player == null || !player.isOnline())
 				return;
 
-			if(!getViewers().contains(player))
+			Session session = sessions.get(player.getEntityId());
+			if(session == null || session.menu != this)
 				return;
 
-			if(!call) {
-				dontCall.add(player);
+			if(call) {
+				execute(player, CloseReason.SERVER_CLOSE);
+				return;
 			}
 
-			menus.remove(player);
-			doSync(player::closeInventory);
+			if(!session.claim(State.CLOSING_SILENT))
+				return;
+
+			removeSession(session);
+			doSync(player, () -> {
+				closeInventory(player, session);
+				session.compareAndSet(State.CLOSING_SILENT, State.CLOSED);
+			});
 		}
 
 		/**
@@ -584,18 +2826,64 @@ public final class AnvilMenuFactory {
 		 * @param item item to display
 		 */
 		public void open(Player player, ItemStack item) {
+			open(player, config.get(), item, null);
+		}
+
+		private void open(Player player, Config config, ItemStack item, String text) {
+			open(player, config, item, text, true);
+		}
+
+		/**
+		 * @param queue whether the open may wait for admission, a menu replacing one
+		 *              still open must not, as nothing would protect the old one meanwhile
+		 */
+		private void open(Player player, Config config, ItemStack item, String text, boolean queue) {
+			Preconditions.checkState(!disposed, "factory is disposed");
+
 			if(player == null || !player.isOnline())
 				return;
 
-			doSync(() -> {
+			if(!queue || !queueOpen(new PendingOpen(this, player, config, item, text)))
+				openNow(player, config, item, text);
+		}
+
+		private void openNow(Player player, Config config, ItemStack item, String text) {
+			// Queued opens may outlive the player or the factory
+			if(disposed || !player.isOnline())
+				return;
+
+			if(config.virtual) {
+				openVirtual(player, this, config, item, text);
+				return;
+			}
+
+			doSync(player, () -> {
 				player.closeInventory();
 
 				Inventory inv = Bukkit.createInventory(player, InventoryType.ANVIL,
-						title == null ? InventoryType.ANVIL.getDefaultTitle() : title);
+						config.title == null ? InventoryType.ANVIL.getDefaultTitle() : config.title);
 				inv.setItem(0, item);
 
 				player.openInventory(inv);
-				menus.put(player, this);
+
+				int windowId;
+				PacketContainer costReset;
+				try {
+					windowId = getWindowId(player);
+					costReset = newCostReset(windowId);
+				} catch(Throwable t) {
+					plugin.getLogger().log(Level.WARNING, "Error reading anvil window id", t);
+					windowId = -1;
+					costReset = null;
+				}
+
+				Session session = new Session(player, this, config, windowId, costReset, inv, item, text);
+				addSession(player, session);
+
+				if(backend == Backend.NETTY)
+					inject(player);
+
+				session.compareAndSet(State.OPENING, State.OPEN);
 			});
 		}
 
@@ -606,8 +2894,36 @@ public final class AnvilMenuFactory {
 		 * @return a list of all viewers
 		 */
 		public List<Player> getViewers() {
-			return menus.entrySet().stream().filter(e -> e.getValue() == Menu.this)
-					.map(Entry::getKey).toList();
+			return List.copyOf(viewers);
+		}
+
+		/**
+		 * Runs the action for every active viewer without copying them,
+		 * cheaper than {@link #getViewers()} for frequent reads
+		 *
+		 * @param action action to run for each viewer
+		 */
+		public void forEachViewer(Consumer<? super Player> action) {
+			viewers.forEach(action);
+		}
+
+		/**
+		 * Gets the amount of active viewers
+		 *
+		 * @return amount of active viewers
+		 */
+		public int viewerCount() {
+			return viewers.size();
+		}
+
+		/**
+		 * Gets whether the player is viewing this menu
+		 *
+		 * @param player player to check
+		 * @return whether the player is viewing this menu
+		 */
+		public boolean isViewing(Player player) {
+			return player != null && viewers.contains(player);
 		}
 
 		/**
@@ -622,10 +2938,11 @@ public final class AnvilMenuFactory {
 		/**
 		 * Gets the response callback for this menu
 		 *
-		 * @return response callback for this menu
+		 * @return response callback for this menu, the default one if an async one is set
 		 */
 		public AnvilResponse getResponse() {
-			return response;
+			AnvilResponse response = config.get().response;
+			return response == null ? DEFAULT_RESPONSE : response;
 		}
 
 		/**
@@ -634,7 +2951,31 @@ public final class AnvilMenuFactory {
 		 * @param response the new response for this menu
 		 */
 		public void setResponse(AnvilResponse response) {
-			this.response = response == null ? DEFAULT_RESPONSE : response;
+			AnvilResponse value = response == null ? DEFAULT_RESPONSE : response;
+			update(config -> config.withResponse(value));
+		}
+
+		/**
+		 * Gets the async response callback for this menu
+		 *
+		 * @return async response callback for this menu, null if a synchronous one is set
+		 */
+		public AsyncAnvilResponse getAsyncResponse() {
+			return config.get().asyncResponse;
+		}
+
+		/**
+		 * Changes the response for this menu to an async one, replacing
+		 * the synchronous response. Setting it to null sets the default response
+		 *
+		 * @param response the new async response for this menu
+		 * @see AsyncAnvilResponse
+		 */
+		public void setAsyncResponse(AsyncAnvilResponse response) {
+			if(response == null)
+				setResponse(null);
+			else
+				update(config -> config.withAsyncResponse(response));
 		}
 
 		/**
@@ -643,7 +2984,10 @@ public final class AnvilMenuFactory {
 		 * @param player player to open it for
 		 */
 		public void open(Player player) {
-			open(player, item);
+			Config config = this.config.get();
+
+			// The item is only read while opening, so the menu's own copy can be used
+			open(player, config, config.item, null);
 		}
 
 		/**
@@ -653,27 +2997,29 @@ public final class AnvilMenuFactory {
 		 * @param itemName Default item name
 		 */
 		public void open(Player player, String itemName) {
-			ItemStack item = getItemAsCopy();
-			ItemMeta meta = item.getItemMeta();
-
-			if(meta != null) {
-				meta.setDisplayName(itemName);
-				item.setItemMeta(meta);
-			}
-
-			open(player, item);
+			Config config = this.config.get();
+			open(player, config, withName(config.item, itemName), null);
 		}
 
 		/**
-		 * Gets the item names currently in the item name
-		 * field of the anvil.
+		 * Gets a snapshot of the item names currently in the item name
+		 * field of the anvil for each viewer who typed something.
 		 * Modifications will result in a {@link UnsupportedOperationException}
 		 *
 		 * @return item names currently in the item name
 		 * field of the anvil
 		 */
 		public Map<Player, String> getItemNames() {
-			return unmodifiableItemNames;
+			Map<Player, String> itemNames = new HashMap<>();
+
+			for(Player viewer : viewers) {
+				Session session = sessions.get(viewer.getEntityId());
+
+				if(session != null && session.menu == this && session.text != null)
+					itemNames.put(viewer, session.text);
+			}
+
+			return Collections.unmodifiableMap(itemNames);
 		}
 
 		/**
@@ -686,7 +3032,7 @@ public final class AnvilMenuFactory {
 		 * @return whether color codes will be stripped or not
 		 */
 		public boolean stripColor() {
-			return stripColor;
+			return config.get().stripColor;
 		}
 
 		/**
@@ -699,7 +3045,81 @@ public final class AnvilMenuFactory {
 		 * @param stripColor new value
 		 */
 		public void setStripColor(boolean stripColor) {
-			this.stripColor = stripColor;
+			update(config -> config.withStripColor(stripColor));
+		}
+
+		/**
+		 * Gets how many ticks a player can go without typing before
+		 * the menu is closed with {@link CloseReason#TIMEOUT}, 0 if disabled
+		 *
+		 * @return idle timeout in ticks
+		 */
+		public long getIdleTimeout() {
+			return config.get().idleTimeout;
+		}
+
+		/**
+		 * Sets how many ticks a player can go without typing before
+		 * the menu is closed with {@link CloseReason#TIMEOUT}.
+		 * Only applies to menus opened afterwards
+		 *
+		 * @param ticks idle timeout in ticks, 0 to disable
+		 */
+		public void setIdleTimeout(long ticks) {
+			Preconditions.checkArgument(ticks >= 0, "ticks is negative");
+
+			update(config -> config.withIdleTimeout(ticks));
+		}
+
+		/**
+		 * Gets how many ticks the menu can stay open before
+		 * it is closed with {@link CloseReason#TIMEOUT}, 0 if disabled
+		 *
+		 * @return deadline in ticks
+		 */
+		public long getDeadline() {
+			return config.get().deadline;
+		}
+
+		/**
+		 * Sets how many ticks the menu can stay open before
+		 * it is closed with {@link CloseReason#TIMEOUT}.
+		 * Only applies to menus opened afterwards
+		 *
+		 * @param ticks deadline in ticks, 0 to disable
+		 */
+		public void setDeadline(long ticks) {
+			Preconditions.checkArgument(ticks >= 0, "ticks is negative");
+
+			update(config -> config.withDeadline(ticks));
+		}
+
+		/**
+		 * <p>
+		 * Gets whether this menu is virtual. Virtual menus are opened with packets
+		 * only, without a server side inventory, and can be opened from any thread.
+		 * </p>
+		 * Default is false
+		 *
+		 * @return whether this menu is virtual or not
+		 */
+		public boolean isVirtual() {
+			return config.get().virtual;
+		}
+
+		/**
+		 * <p>
+		 * Sets whether this menu is virtual. Virtual menus are opened with packets
+		 * only, without a server side inventory, and can be opened from any thread.
+		 * Their contents are still sent from the thread owning the player.
+		 * The player shouldn't have another inventory open when one is opened.
+		 * </p>
+		 * Default is false
+		 *
+		 * @param virtual new value
+		 */
+		public void setVirtual(boolean virtual) {
+			update(config -> config.withVirtual(virtual));
 		}
 	}
 }